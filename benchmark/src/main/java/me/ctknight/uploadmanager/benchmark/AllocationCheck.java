@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.ctknight.uploadmanager.util.ClusterMap;
+import me.ctknight.uploadmanager.util.ConcurrentLongLongMap;
+
+/**
+ * Fails if the speed bookkeeping UploadNotifier does for every progress callback, or the
+ * clustering of its notification passes, allocates.
+ * <p>
+ * Several writer threads drive {@link ConcurrentLongLongMap} the way upload threads do, put on
+ * each progress step and remove when done, while a reader sums the speeds like a notification
+ * pass. Then {@link ClusterMap} is driven like UploadNotifier.updateWithLocked() over uploads
+ * with cached tags whose notification types don't change. Each thread measures its own
+ * allocated bytes after a warm-up, which must be 0. Building the tags, and iterating the
+ * service's collection of uploads, are outside the check.
+ * <p>
+ * Run with {@code gradle -p benchmark allocCheck}, exits with 1 on failure.
+ */
+public final class AllocationCheck {
+
+    private static final int WRITERS = 5;
+    private static final int WARMUP = 200_000;
+    private static final int ITERATIONS = 1_000_000;
+    private static final int CLUSTER_UPLOADS = 40;
+    private static final int CLUSTER_PASSES = 100_000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private AllocationCheck() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final ConcurrentLongLongMap speeds = new ConcurrentLongLongMap(20);
+        final AtomicLong allocated = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(WRITERS + 1);
+
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeSpeeds(speeds, writer, WARMUP);
+                    final long before = THREADS.getCurrentThreadAllocatedBytes();
+                    writeSpeeds(speeds, writer, ITERATIONS);
+                    allocated.addAndGet(THREADS.getCurrentThreadAllocatedBytes() - before);
+                    done.countDown();
+                }
+            }, "writer-" + w).start();
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long sink = readSpeeds(speeds, WARMUP);
+                final long before = THREADS.getCurrentThreadAllocatedBytes();
+                sink += readSpeeds(speeds, ITERATIONS);
+                allocated.addAndGet(THREADS.getCurrentThreadAllocatedBytes() - before);
+                if (sink == Long.MIN_VALUE) {
+                    System.out.println(sink);
+                }
+                done.countDown();
+            }
+        }, "reader").start();
+        done.await();
+
+        System.out.println("AllocationCheck: " + allocated.get() + " bytes allocated by "
+                + (WRITERS + 1) + " threads over " + ITERATIONS + " operations each");
+
+        final ClusterMap<String, ClusterMap.Cluster<String>> clusters = new ClusterMap<>();
+        final List<String> tags = new ArrayList<>(CLUSTER_UPLOADS);
+        for (int i = 0; i < CLUSTER_UPLOADS; i++) {
+            // active and waiting uploads share a notification, finished ones have their own
+            tags.add(i % 4 == 0 ? "1:package" : i % 4 == 1 ? "2:package" : "3:" + i);
+        }
+        long clusterSink = cluster(clusters, tags, WARMUP / 100);
+        final long before = THREADS.getCurrentThreadAllocatedBytes();
+        clusterSink += cluster(clusters, tags, CLUSTER_PASSES);
+        final long clusterAllocated = THREADS.getCurrentThreadAllocatedBytes() - before;
+        if (clusterSink == Long.MIN_VALUE) {
+            System.out.println(clusterSink);
+        }
+        System.out.println("AllocationCheck: " + clusterAllocated + " bytes allocated by "
+                + CLUSTER_PASSES + " clustering passes over " + CLUSTER_UPLOADS + " uploads");
+
+        if (allocated.get() != 0 || clusterAllocated != 0) {
+            System.exit(1);
+        }
+    }
+
+    private static long cluster(ClusterMap<String, ClusterMap.Cluster<String>> clusters,
+                                List<String> tags, int passes) {
+        long sink = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            clusters.beginPass();
+            for (int i = 0; i < tags.size(); i++) {
+                final String tag = tags.get(i);
+                ClusterMap.Cluster<String> cluster = clusters.get(tag);
+                if (cluster == null) {
+                    cluster = new ClusterMap.Cluster<>(tag);
+                    clusters.add(cluster);
+                }
+                cluster.mItems.add(tag);
+            }
+            for (int i = clusters.size() - 1; i >= 0; i--) {
+                final ClusterMap.Cluster<String> cluster = clusters.valueAt(i);
+                if (cluster.mItems.isEmpty()) {
+                    clusters.removeAt(i);
+                } else {
+                    sink += cluster.mItems.size();
+                }
+            }
+        }
+        return sink;
+    }
+
+    private static void writeSpeeds(ConcurrentLongLongMap speeds, int writer, int iterations) {
+        // each writer cycles through its own uploads, like a thread taking the next one
+        for (int i = 0; i < iterations; i++) {
+            final long id = 1 + writer + (long) WRITERS * (i / 1000);
+            if (i % 1000 == 999) {
+                speeds.remove(id);
+            } else {
+                speeds.put(id, i);
+            }
+        }
+    }
+
+    private static long readSpeeds(ConcurrentLongLongMap speeds, int iterations) {
+        long sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            sum += speeds.get(1 + i % (WRITERS * 8));
+        }
+        return sum;
+    }
+}
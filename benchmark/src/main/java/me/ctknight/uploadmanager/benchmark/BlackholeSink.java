@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager.benchmark;
+
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+
+/**
+ * Discards everything written to it, standing in for the socket.
+ */
+final class BlackholeSink implements Sink {
+
+    private long mWritten;
+
+    @Override
+    public void write(Buffer source, long byteCount) throws IOException {
+        source.skip(byteCount);
+        mWritten += byteCount;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public Timeout timeout() {
+        return Timeout.NONE;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    long written() {
+        return mWritten;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import me.ctknight.uploadmanager.ResponsePolicy;
+import me.ctknight.uploadmanager.util.PriorityExecutor;
+import me.ctknight.uploadmanager.util.ProgressThrottle;
+import me.ctknight.uploadmanager.util.okhttputil.CountingInputStreamMultipartBody;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.BufferedSource;
+
+/**
+ * Pushes hundreds of uploads through the library's request path and its upload executor against
+ * a local {@link MockWebServer} with throttled bandwidth, added latency and injected errors, and
+ * reports throughput, completion latency percentiles, estimated progress writes and CPU time.
+ * <p>
+ * What it exercises of the library: uploads are queued as {@link PriorityExecutor.Task}s on the
+ * {@link PriorityExecutor} UploadService runs them on, sent as a
+ * {@link CountingInputStreamMultipartBody}, classified by {@link ResponsePolicy.Default}, and
+ * their progress is throttled by {@link ProgressThrottle}. Changes to those show up here.
+ * <p>
+ * What it doesn't: UploadService's update pass, BandwidthEstimator and the provider need an
+ * Android runtime. The concurrency is a fixed parameter, failed attempts are retried right away
+ * on the same thread instead of after a backoff, and nothing is written to a database;
+ * {@code progressWritesPerUpload} only counts the progress rows the throttle lets through. Use
+ * it to compare the request path and queueing, not database writes or the service's scheduling.
+ * <p>
+ * Run with {@code gradle -p benchmark loadtest -Puploads=300 -PfileSize=262144
+ * -PbandwidthKbps=4096 -PlatencyMs=100 -PerrorRate=0.05}. Each run appends a JSON line to
+ * {@code benchmark/build/loadtest-results.jsonl}.
+ */
+public final class LoadHarness {
+
+    // defaults of BandwidthEstimator and UploadContract.Constants, which can't be loaded here
+    private static final int DEFAULT_CONCURRENCY = 5;
+    private static final int MAX_RETRIES = 5;
+    private static final long DEFAULT_TIMEOUT = 20 * 1000;
+
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    private final int mUploads;
+    private final int mConcurrency;
+    private final int mPriorities;
+    private final int mFileSize;
+    private final long mBandwidthBytesPerSecond;
+    private final long mLatencyMillis;
+    private final double mErrorRate;
+    private final byte[] mData;
+
+    private final AtomicLong mProgressWrites = new AtomicLong();
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mWorkerCpuNanos = new AtomicLong();
+
+    private LoadHarness(int uploads, int concurrency, int priorities, int fileSize,
+                        long bandwidthKbps, long latencyMillis, double errorRate) {
+        mUploads = uploads;
+        mConcurrency = concurrency;
+        mPriorities = priorities;
+        mFileSize = fileSize;
+        mBandwidthBytesPerSecond = bandwidthKbps * 1024 / 8;
+        mLatencyMillis = latencyMillis;
+        mErrorRate = errorRate;
+        mData = new byte[fileSize];
+        new Random(42).nextBytes(mData);
+    }
+
+    public static void main(String[] args) throws Exception {
+        // MockWebServer logs every request
+        Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.WARNING);
+        final LoadHarness harness = new LoadHarness(
+                Integer.getInteger("uploads", 300),
+                Integer.getInteger("concurrency", DEFAULT_CONCURRENCY),
+                Integer.getInteger("priorities", 1),
+                Integer.getInteger("fileSize", 256 * 1024),
+                Long.getLong("bandwidthKbps", 0L),
+                Long.getLong("latencyMs", 50L),
+                Double.parseDouble(System.getProperty("errorRate", "0.02")));
+        final String result = harness.run();
+        System.out.println(result);
+
+        final String output = System.getProperty("output");
+        if (output != null) {
+            final File file = new File(output);
+            file.getParentFile().mkdirs();
+            final Writer writer = new FileWriter(file, true);
+            try {
+                writer.write(result);
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private String run() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(new FaultyDispatcher());
+        server.start();
+
+        final OkHttpClient client = new OkHttpClient.Builder()
+                .connectTimeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS)
+                .readTimeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS)
+                .build();
+        final PriorityExecutor executor = new PriorityExecutor(mConcurrency);
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+        final Random random = new Random(3);
+        final int[] priorities = new int[mUploads];
+        // completion latency from enqueue, queueing included like in the service
+        final long[] latencies = new long[mUploads];
+        final List<PriorityExecutor.Task> tasks = new ArrayList<>(mUploads);
+        final long processCpuStart = os.getProcessCpuTime();
+        final long start = System.nanoTime();
+        for (int i = 0; i < mUploads; i++) {
+            final int id = i;
+            priorities[id] = random.nextInt(mPriorities);
+            final PriorityExecutor.Task task = new PriorityExecutor.Task(new Runnable() {
+                @Override
+                public void run() {
+                    final long cpuStart = threads.getCurrentThreadCpuTime();
+                    try {
+                        upload(client, server, id);
+                        latencies[id] = System.nanoTime() - start;
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        mWorkerCpuNanos.addAndGet(threads.getCurrentThreadCpuTime() - cpuStart);
+                    }
+                }
+            }, id, priorities[id]);
+            tasks.add(task);
+            executor.execute(task);
+        }
+
+        for (PriorityExecutor.Task task : tasks) {
+            task.get();
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long processCpu = os.getProcessCpuTime() - processCpuStart;
+        executor.shutdown();
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        server.shutdown();
+
+        final long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        // the uploads of the highest priority, they should overtake the queue
+        int top = 0;
+        final long[] topSorted = new long[mUploads];
+        for (int i = 0; i < mUploads; i++) {
+            if (priorities[i] == mPriorities - 1) {
+                topSorted[top++] = latencies[i];
+            }
+        }
+        final long[] topLatencies = Arrays.copyOf(topSorted, top);
+        Arrays.sort(topLatencies);
+        final int completed = mUploads;
+        final double seconds = elapsed / 1e9;
+        return String.format(Locale.US, "{\"uploads\":%d,\"completed\":%d,\"failed\":%d,"
+                        + "\"requests\":%d,\"concurrency\":%d,\"priorities\":%d,\"fileSize\":%d,\"bandwidthKbps\":%d,"
+                        + "\"latencyMs\":%d,\"errorRate\":%.3f,\"elapsedMs\":%d,"
+                        + "\"throughputBytesPerSec\":%.0f,\"uploadsPerSec\":%.2f,"
+                        + "\"p50Ms\":%d,\"p99Ms\":%d,\"p50MsTopPriority\":%d,\"progressWritesPerUpload\":%.2f,"
+                        + "\"workerCpuMs\":%d,\"processCpuMs\":%d}",
+                mUploads, completed - mFailures.get(), mFailures.get(), mRequests.get(),
+                mConcurrency, mPriorities, mFileSize, mBandwidthBytesPerSecond * 8 / 1024, mLatencyMillis,
+                mErrorRate, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                (completed - mFailures.get()) * (double) mFileSize / seconds,
+                (completed - mFailures.get()) / seconds,
+                TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 0.50)),
+                TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 0.99)),
+                TimeUnit.NANOSECONDS.toMillis(percentile(topLatencies, 0.50)),
+                mProgressWrites.get() / (double) mUploads,
+                TimeUnit.NANOSECONDS.toMillis(mWorkerCpuNanos.get()),
+                TimeUnit.NANOSECONDS.toMillis(processCpu));
+    }
+
+    private void upload(OkHttpClient client, MockWebServer server, int id) throws IOException {
+        final ResponsePolicy policy = new ResponsePolicy.Default();
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            final ProgressWrites progress = new ProgressWrites();
+            final CountingInputStreamMultipartBody body = new CountingInputStreamMultipartBody.Builder()
+                    .setType(CountingInputStreamMultipartBody.FORM)
+                    .setProgressListener(progress)
+                    .addFormDataPart("file", "file" + id,
+                            CountingInputStreamMultipartBody.create(OCTET_STREAM,
+                                    new ByteArrayInputStream(mData)))
+                    .build();
+            final Request request = new Request.Builder()
+                    .url(server.url("/upload"))
+                    .post(body)
+                    .build();
+
+            mRequests.incrementAndGet();
+            final Response response = client.newCall(request).execute();
+            final int action;
+            try {
+                // UploadThread keeps a bounded copy, the harness only drains it
+                final BufferedSource source = response.body().source();
+                while (!source.exhausted()) {
+                    source.skip(source.buffer().size());
+                }
+                action = policy.classify(response.code(), response.headers());
+            } finally {
+                response.close();
+            }
+            mProgressWrites.addAndGet(progress.mWrites);
+            if (action == ResponsePolicy.ACTION_SUCCESS) {
+                return;
+            }
+            if (action == ResponsePolicy.ACTION_FAIL) {
+                break;
+            }
+            // the service waits for its backoff alarm here, keep the harness fast
+        }
+        mFailures.incrementAndGet();
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Counts the progress rows UploadThread.updateProgress() would write.
+     */
+    private static final class ProgressWrites implements CountingInputStreamMultipartBody.ProgressListener {
+        private final ProgressThrottle mThrottle = new ProgressThrottle();
+        private int mWrites;
+
+        @Override
+        public void transferred(long num) {
+            final long now = System.nanoTime() / 1000000;
+            if (mThrottle.shouldPersist(num, now)) {
+                mWrites++;
+                mThrottle.persisted(num, now);
+            }
+        }
+    }
+
+    /**
+     * Answers after the configured latency, throttles each connection's request body to the
+     * configured bandwidth and fails a share of requests with 503.
+     */
+    private final class FaultyDispatcher extends Dispatcher {
+        private final Random mRandom = new Random(7);
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            if (mLatencyMillis > 0) {
+                Thread.sleep(mLatencyMillis);
+            }
+            final boolean fail;
+            synchronized (mRandom) {
+                fail = mRandom.nextDouble() < mErrorRate;
+            }
+            if (fail) {
+                return new MockResponse().setResponseCode(503).setBody("unavailable");
+            }
+            return new MockResponse().setResponseCode(200).setBody("{\"size\":" + request.getBodySize() + "}");
+        }
+
+        @Override
+        public MockResponse peek() {
+            // used by MockWebServer to throttle reading the request body
+            final MockResponse throttle = new MockResponse();
+            if (mBandwidthBytesPerSecond > 0) {
+                throttle.throttleBody(Math.max(1, mBandwidthBytesPerSecond / 10), 100,
+                        TimeUnit.MILLISECONDS);
+            }
+            return throttle;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import me.ctknight.uploadmanager.util.okhttputil.CountingInputStreamMultipartBody;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * Encodes multipart bodies into a discarding sink, comparing
+ * {@link CountingInputStreamMultipartBody} and its counting sink against okhttp's stock
+ * {@link MultipartBody} fed by the same streaming part bodies.
+ * <p>
+ * The {@code bytes} counter is the encode throughput in bytes per second. Run with
+ * {@code -prof gc} and divide {@code gc.alloc.rate.norm} by the encoded bytes per operation
+ * ({@code partCount * fileSize} plus framing) for allocations per MB.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MultipartBodyBenchmark {
+
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    @Param({"1", "4", "16"})
+    public int partCount;
+
+    @Param({"65536", "1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"2048", "8192", "65536"})
+    public int chunkSize;
+
+    private byte[] mData;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mData = new byte[fileSize];
+        new Random(42).nextBytes(mData);
+    }
+
+    @Benchmark
+    public void countingBody(Bytes bytes) throws IOException {
+        final CountingInputStreamMultipartBody.Builder builder =
+                new CountingInputStreamMultipartBody.Builder()
+                        .setType(CountingInputStreamMultipartBody.FORM)
+                        .setProgressListener(new CountingInputStreamMultipartBody.ProgressListener() {
+                            @Override
+                            public void transferred(long num) {
+                            }
+                        });
+        for (int i = 0; i < partCount; i++) {
+            builder.addFormDataPart("file" + i, "file" + i, newPartBody());
+        }
+        bytes.bytes += encode(builder.build());
+    }
+
+    /**
+     * Like {@link #countingBody(Bytes)}, with a listener doing what UploadThread does on each
+     * callback: read the clock and publish the count. The difference is the progress overhead.
+     */
+    @Benchmark
+    public void countingBodyWithProgress(Bytes bytes, final Blackhole blackhole) throws IOException {
+        final CountingInputStreamMultipartBody.Builder builder =
+                new CountingInputStreamMultipartBody.Builder()
+                        .setType(CountingInputStreamMultipartBody.FORM)
+                        .setProgressListener(new CountingInputStreamMultipartBody.ProgressListener() {
+                            @Override
+                            public void transferred(long num) {
+                                blackhole.consume(System.currentTimeMillis());
+                                blackhole.consume(num);
+                            }
+                        });
+        for (int i = 0; i < partCount; i++) {
+            builder.addFormDataPart("file" + i, "file" + i, newPartBody());
+        }
+        bytes.bytes += encode(builder.build());
+    }
+
+    @Benchmark
+    public void stockBody(Bytes bytes) throws IOException {
+        final MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM);
+        for (int i = 0; i < partCount; i++) {
+            builder.addFormDataPart("file" + i, "file" + i, newPartBody());
+        }
+        bytes.bytes += encode(builder.build());
+    }
+
+    private RequestBody newPartBody() {
+        return CountingInputStreamMultipartBody.create(OCTET_STREAM,
+                new ByteArrayInputStream(mData), chunkSize);
+    }
+
+    private static long encode(RequestBody body) throws IOException {
+        final BlackholeSink blackhole = new BlackholeSink();
+        final BufferedSink sink = Okio.buffer(blackhole);
+        body.writeTo(sink);
+        sink.flush();
+        return blackhole.written();
+    }
+
+    /**
+     * Encoded bytes, reported by JMH as a rate.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+}
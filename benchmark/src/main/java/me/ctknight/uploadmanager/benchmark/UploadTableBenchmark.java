@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import me.ctknight.uploadmanager.UploadSchema;
+
+/**
+ * Runs the SQL that UploadService.updateLocked(), UploadManager.query() and
+ * UploadProvider.insert() issue against an uploads table seeded with 1k to 100k rows, on the
+ * desktop SQLite. The tables, indexes and triggers are created from {@link UploadSchema}, the
+ * SQL UploadProvider runs; the statements mirror UploadProvider and UploadInfo.PROJECTION, keep
+ * them in sync when columns are added.
+ * <p>
+ * This covers the database side of a service pass, which grows with the row count. The
+ * per-row UploadInfo work needs an Android runtime and isn't measured here.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UploadTableBenchmark {
+
+    private static final int UID = 10042;
+    private static final int HIDDEN_COMPLETE = 2;
+
+    // UploadProvider.ensureGroup()
+    private static final String ENSURE_GROUP =
+            "INSERT OR IGNORE INTO uploadgroups(uid, name) VALUES (?, ?)";
+
+    // groups of the seeded rows, one in GROUPED_SHARE rows has one
+    private static final int GROUPS = 50;
+    private static final int GROUPED_SHARE = 4;
+
+    // UploadInfo.PROJECTION
+    private static final String SERVICE_PASS = "SELECT _id, url, uri, uid, mimetype, visibility, "
+            + "status, numfailed, retryafter, lastmod, notificationpackage, notificationclass, "
+            + "notificationextras, totalbytes, currentbytes, deleted, title, description, control, "
+            + "bypassnetworkchange, useragent, referer, allowroaming, isdeferrable, enqueuetime, errormsg, "
+            + "resumable, rawmethod, datafiled, priority "
+            + "FROM uploads WHERE uid = ? AND visibility != " + HIDDEN_COMPLETE
+            + " ORDER BY priority DESC, _id ASC";
+
+    // UploadManager.UNDERLYING_COLUMNS
+    private static final String MANAGER_COLUMNS = "SELECT _id, title, description, status, url, "
+            + "uri AS uri, mimetype AS media_type, totalbytes AS total_size, "
+            + "lastmod AS last_modified_timestamp, currentbytes AS bytes_so_far, "
+            + "uploadgroup, priority, 'placeholder' AS local_uri, 'placeholder' AS reason "
+            + "FROM uploads WHERE uid = ? AND deleted != '1' ";
+
+    private static final String MANAGER_ORDER = " ORDER BY lastmod DESC, _id DESC";
+
+    // the default Query
+    private static final String MANAGER_QUERY = MANAGER_COLUMNS + MANAGER_ORDER;
+
+    // Query.setPageAfter() with Query.setLimit()
+    private static final String MANAGER_PAGE = MANAGER_COLUMNS
+            + "AND lastmod <= ? AND (lastmod < ? OR _id < ?)" + MANAGER_ORDER + " LIMIT ?";
+
+    // the same page by offset, what the keyset avoids
+    private static final String MANAGER_OFFSET = MANAGER_QUERY + " LIMIT ? OFFSET ?";
+
+    private static final int PAGE_SIZE = 50;
+
+    // UploadManager.restartUpload()
+    private static final String RESTART = "UPDATE uploads SET currentbytes = 0, totalbytes = -1, "
+            + "status = 0, numfailed = 0 WHERE ";
+
+    // the most IDs the old OR chain of bound parameters could take on Android's SQLite
+    private static final int OR_CHAIN_IDS = 999;
+    // a bulk restart past that limit, run as UploadManager does now
+    private static final int BULK_IDS = 10000;
+    // UploadManager.MAX_IDS_PER_STATEMENT
+    private static final int MAX_IDS_PER_STATEMENT = 1000;
+
+    private static final String INSERT = "INSERT INTO uploads(url, uri, mimetype, datafiled, uid, "
+            + "title, description, useragent, visibility, allowroaming, isdeferrable, enqueuetime, "
+            + "lastmod, uploadgroup) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    private File mFile;
+    private Connection mConnection;
+    private PreparedStatement mInsert;
+    private PreparedStatement mEnsureGroup;
+    private long mSeededMaxId;
+    // last row before the page in the middle of the history
+    private int mPageOffset;
+    private long mPageAfterLastMod;
+    private long mPageAfterId;
+    private long[] mBulkIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        mFile = File.createTempFile("uploads", ".db");
+        mConnection = DriverManager.getConnection("jdbc:sqlite:" + mFile.getAbsolutePath());
+        try (Statement statement = mConnection.createStatement()) {
+            statement.execute(UploadSchema.CREATE_UPLOADS_TABLE);
+            statement.execute(UploadSchema.CREATE_LASTMOD_INDEX);
+            statement.execute(UploadSchema.CREATE_GROUP_INDEX);
+            statement.execute(UploadSchema.CREATE_GROUPS_TABLE);
+            statement.execute(UploadSchema.CREATE_GROUP_INSERT_TRIGGER);
+            statement.execute(UploadSchema.CREATE_GROUP_UPDATE_TRIGGER);
+            statement.execute(UploadSchema.CREATE_GROUP_DELETE_TRIGGER);
+        }
+        mInsert = mConnection.prepareStatement(INSERT);
+        mEnsureGroup = mConnection.prepareStatement(ENSURE_GROUP);
+
+        final Random random = new Random(42);
+        final long now = System.currentTimeMillis();
+        mConnection.setAutoCommit(false);
+        for (int i = 0; i < GROUPS; i++) {
+            mEnsureGroup.setInt(1, UID);
+            mEnsureGroup.setString(2, "group" + i);
+            mEnsureGroup.executeUpdate();
+        }
+        try (PreparedStatement seed = mConnection.prepareStatement("INSERT INTO uploads(url, uri, "
+                + "uid, status, numfailed, mimetype, lastmod, title, totalbytes, currentbytes, "
+                + "visibility, allowroaming, datafiled, enqueuetime, uploadgroup) "
+                + "VALUES (?, ?, ?, ?, 0, ?, ?, ?, ?, ?, ?, 1, 'file', ?, ?)")) {
+            for (int i = 0; i < rows; i++) {
+                // mostly finished uploads, like a long-lived app accumulates
+                final boolean finished = random.nextInt(10) != 0;
+                final long total = 1024 + random.nextInt(16 * 1024 * 1024);
+                seed.setString(1, "https://example.com/upload");
+                seed.setString(2, "file:///sdcard/DCIM/IMG_" + i + ".jpg");
+                seed.setInt(3, UID);
+                seed.setInt(4, finished ? 200 : 0);
+                seed.setString(5, "image/jpeg");
+                seed.setLong(6, now - random.nextInt(Integer.MAX_VALUE));
+                seed.setString(7, "IMG_" + i + ".jpg");
+                seed.setLong(8, total);
+                seed.setLong(9, finished ? total : 0);
+                seed.setInt(10, finished ? 1 : 0);
+                seed.setLong(11, now);
+                seed.setString(12, random.nextInt(GROUPED_SHARE) == 0
+                        ? "group" + random.nextInt(GROUPS) : null);
+                seed.addBatch();
+            }
+            seed.executeBatch();
+        }
+        mConnection.commit();
+        mConnection.setAutoCommit(true);
+
+        try (Statement statement = mConnection.createStatement();
+             ResultSet max = statement.executeQuery("SELECT MAX(_id) FROM uploads")) {
+            max.next();
+            mSeededMaxId = max.getLong(1);
+        }
+
+        mBulkIds = new long[BULK_IDS];
+        for (int i = 0; i < BULK_IDS; i++) {
+            mBulkIds[i] = 1 + random.nextInt(rows);
+        }
+
+        mPageOffset = rows / 2;
+        try (PreparedStatement query = mConnection.prepareStatement(MANAGER_OFFSET)) {
+            query.setInt(1, UID);
+            query.setInt(2, 1);
+            query.setInt(3, mPageOffset - 1);
+            try (ResultSet cursor = query.executeQuery()) {
+                cursor.next();
+                mPageAfterId = cursor.getLong(1);
+                mPageAfterLastMod = cursor.getLong(9);
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void dropEnqueued() throws SQLException {
+        try (Statement statement = mConnection.createStatement()) {
+            statement.execute("DELETE FROM uploads WHERE _id > " + mSeededMaxId);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        mInsert.close();
+        mEnsureGroup.close();
+        mConnection.close();
+        if (!mFile.delete()) {
+            mFile.deleteOnExit();
+        }
+    }
+
+    /**
+     * The query and cursor walk of one updateLocked() pass. Columns are looked up by name for
+     * each row, as UploadInfo.Reader does.
+     */
+    @Benchmark
+    public void servicePass(Blackhole blackhole) throws SQLException {
+        try (PreparedStatement query = mConnection.prepareStatement(SERVICE_PASS)) {
+            query.setInt(1, UID);
+            try (ResultSet cursor = query.executeQuery()) {
+                while (cursor.next()) {
+                    blackhole.consume(cursor.getLong("_id"));
+                    blackhole.consume(cursor.getString("url"));
+                    blackhole.consume(cursor.getString("uri"));
+                    blackhole.consume(cursor.getInt("status"));
+                    blackhole.consume(cursor.getInt("numfailed"));
+                    blackhole.consume(cursor.getLong("lastmod"));
+                    blackhole.consume(cursor.getLong("totalbytes"));
+                    blackhole.consume(cursor.getLong("currentbytes"));
+                    blackhole.consume(cursor.getString("title"));
+                    blackhole.consume(cursor.getInt("visibility"));
+                    blackhole.consume(cursor.getInt("control"));
+                    blackhole.consume(cursor.getInt("allowroaming"));
+                    blackhole.consume(cursor.getInt("isdeferrable"));
+                    blackhole.consume(cursor.getLong("enqueuetime"));
+                }
+            }
+        }
+    }
+
+    /**
+     * UploadManager.query() with a default Query, reading the whole cursor.
+     */
+    @Benchmark
+    public void managerQuery(Blackhole blackhole) throws SQLException {
+        try (PreparedStatement query = mConnection.prepareStatement(MANAGER_QUERY)) {
+            query.setInt(1, UID);
+            try (ResultSet cursor = query.executeQuery()) {
+                while (cursor.next()) {
+                    blackhole.consume(cursor.getLong(1));
+                    blackhole.consume(cursor.getString(2));
+                    blackhole.consume(cursor.getInt(4));
+                    blackhole.consume(cursor.getLong(9));
+                    blackhole.consume(cursor.getLong(10));
+                }
+            }
+        }
+    }
+
+    /**
+     * One page of {@value #PAGE_SIZE} rows from the middle of the history, after the last row of
+     * the previous page. Should take the same time for any table size.
+     */
+    @Benchmark
+    public void managerQueryPage(Blackhole blackhole) throws SQLException {
+        try (PreparedStatement query = mConnection.prepareStatement(MANAGER_PAGE)) {
+            query.setInt(1, UID);
+            query.setLong(2, mPageAfterLastMod);
+            query.setLong(3, mPageAfterLastMod);
+            query.setLong(4, mPageAfterId);
+            query.setInt(5, PAGE_SIZE);
+            consumePage(query, blackhole);
+        }
+    }
+
+    /**
+     * The same page as {@link #managerQueryPage} by LIMIT/OFFSET, which steps over every row
+     * before it.
+     */
+    @Benchmark
+    public void managerQueryOffset(Blackhole blackhole) throws SQLException {
+        try (PreparedStatement query = mConnection.prepareStatement(MANAGER_OFFSET)) {
+            query.setInt(1, UID);
+            query.setInt(2, PAGE_SIZE);
+            query.setInt(3, mPageOffset);
+            consumePage(query, blackhole);
+        }
+    }
+
+    private static void consumePage(PreparedStatement query, Blackhole blackhole)
+            throws SQLException {
+        try (ResultSet cursor = query.executeQuery()) {
+            while (cursor.next()) {
+                blackhole.consume(cursor.getLong(1));
+                blackhole.consume(cursor.getString(2));
+                blackhole.consume(cursor.getInt(4));
+                blackhole.consume(cursor.getLong(9));
+                blackhole.consume(cursor.getLong(10));
+            }
+        }
+    }
+
+    /**
+     * restartUpload() of {@value #OR_CHAIN_IDS} uploads the way it used to select them, an
+     * {@code _id = ? OR ...} chain with one bound parameter per ID.
+     */
+    @Benchmark
+    public int restartByOrChain() throws SQLException {
+        final StringBuilder where = new StringBuilder("(");
+        for (int i = 0; i < OR_CHAIN_IDS; i++) {
+            if (i > 0) {
+                where.append("OR ");
+            }
+            where.append("_id = ? ");
+        }
+        where.append(")");
+        try (PreparedStatement update = mConnection.prepareStatement(RESTART + where)) {
+            for (int i = 0; i < OR_CHAIN_IDS; i++) {
+                update.setString(i + 1, Long.toString(mBulkIds[i]));
+            }
+            return update.executeUpdate();
+        }
+    }
+
+    /**
+     * The same restart with UploadManager.getWhereClauseForIds(), one IN list of numbers.
+     */
+    @Benchmark
+    public int restartByInList() throws SQLException {
+        try (Statement update = mConnection.createStatement()) {
+            return update.executeUpdate(RESTART + inList(mBulkIds, 0, OR_CHAIN_IDS));
+        }
+    }
+
+    /**
+     * restartUpload() of {@value #BULK_IDS} uploads, IN lists of
+     * {@value #MAX_IDS_PER_STATEMENT} IDs in one transaction like UploadProvider.applyBatch().
+     */
+    @Benchmark
+    public int restartBulk() throws SQLException {
+        int count = 0;
+        mConnection.setAutoCommit(false);
+        try (Statement update = mConnection.createStatement()) {
+            for (int from = 0; from < BULK_IDS; from += MAX_IDS_PER_STATEMENT) {
+                final int to = Math.min(BULK_IDS, from + MAX_IDS_PER_STATEMENT);
+                count += update.executeUpdate(RESTART + inList(mBulkIds, from, to));
+            }
+            mConnection.commit();
+        } finally {
+            mConnection.setAutoCommit(true);
+        }
+        return count;
+    }
+
+    private static String inList(long[] ids, int from, int to) {
+        final StringBuilder where = new StringBuilder((to - from) * 8 + 16);
+        where.append("_id IN (");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                where.append(',');
+            }
+            where.append(ids[i]);
+        }
+        return where.append(")").toString();
+    }
+
+    /**
+     * One UploadProvider.insert() of the uploads row, in its own transaction.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int enqueue() throws SQLException {
+        return insert(null);
+    }
+
+    /**
+     * UploadProvider.insert() of an upload with a group: the group row is ensured, then the
+     * insert trigger adds the upload to its totals. Not in one transaction, like the provider.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int enqueueGrouped() throws SQLException {
+        mEnsureGroup.setInt(1, UID);
+        mEnsureGroup.setString(2, "group0");
+        mEnsureGroup.executeUpdate();
+        return insert("group0");
+    }
+
+    private int insert(String group) throws SQLException {
+        mInsert.setString(1, "https://example.com/upload");
+        mInsert.setString(2, "file:///sdcard/DCIM/new.jpg");
+        mInsert.setString(3, "image/jpeg");
+        mInsert.setString(4, "file");
+        mInsert.setInt(5, UID);
+        mInsert.setString(6, "new.jpg");
+        mInsert.setString(7, null);
+        mInsert.setString(8, null);
+        mInsert.setInt(9, 0);
+        mInsert.setInt(10, 1);
+        mInsert.setInt(11, 0);
+        final long now = System.currentTimeMillis();
+        mInsert.setLong(12, now);
+        mInsert.setLong(13, now);
+        mInsert.setString(14, group);
+        return mInsert.executeUpdate();
+    }
+}
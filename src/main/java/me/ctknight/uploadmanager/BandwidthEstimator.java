@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Upstream bandwidth seen by all uploads of this process, per network.
+ * <p>
+ * Every running {@link UploadThread} adds the bytes it sent to the window of its network, so the
+ * estimate is the aggregate throughput of the link rather than one upload's view of it. The
+ * window keeps the last {@link #BUCKET_COUNT} seconds; seconds in which nothing was sent don't
+ * count, so the estimate survives pauses between uploads. Until a network has a full second of
+ * data the system's link estimate is used.
+ * <p>
+ * The result drives the ETA in notifications, the number of concurrent uploads, the chunk size
+ * of request bodies and {@link UploadManager#getEstimatedCompletionTime(long)}.
+ */
+final class BandwidthEstimator {
+
+    private static final long BUCKET_MILLIS = 1000;
+    private static final int BUCKET_COUNT = 20;
+    // below this share per upload, more concurrent uploads only make each of them finish later
+    private static final long MIN_SHARE_PER_UPLOAD = 32 * 1024;
+    private static final int MIN_CONCURRENT = 2;
+    static final int MAX_CONCURRENT = 5;
+    // a chunk holds about this much sending time, so progress stays smooth on slow links
+    private static final long CHUNK_MILLIS = 50;
+    private static final int MIN_CHUNK_SIZE = 2048;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    // key of uploads whose socket isn't bound to a network
+    private static final Object DEFAULT_NETWORK = new Object();
+    // windows kept for networks the service wasn't told were lost, like while it was stopped
+    private static final int MAX_WINDOWS = 8;
+
+    // all guarded by BandwidthEstimator.class
+    // oldest first, to drop idle windows of networks that are gone
+    private static final Map<Object, Window> sWindows = new LinkedHashMap<>();
+    private static final Map<Long, Object> sUploads = new HashMap<>();
+    private static Object sLastNetwork = DEFAULT_NETWORK;
+
+    private BandwidthEstimator() {
+    }
+
+    private static Object key(Object network) {
+        return network == null ? DEFAULT_NETWORK : network;
+    }
+
+    private static Window window(Object key) {
+        Window window = sWindows.get(key);
+        if (window == null) {
+            if (sWindows.size() >= MAX_WINDOWS) {
+                evictIdleWindow();
+            }
+            window = new Window();
+            sWindows.put(key, window);
+        }
+        return window;
+    }
+
+    private static void evictIdleWindow() {
+        final Iterator<Map.Entry<Object, Window>> iterator = sWindows.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Object, Window> entry = iterator.next();
+            if (entry.getValue().mActiveUploads <= 0 && entry.getKey() != sLastNetwork) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@code network} is gone, drop its window. Uploads still running on it keep going without
+     * being counted until they finish.
+     */
+    static synchronized void networkLost(Object network) {
+        final Object key = key(network);
+        if (key == DEFAULT_NETWORK) {
+            return;
+        }
+        sWindows.remove(key);
+        if (key.equals(sLastNetwork)) {
+            sLastNetwork = DEFAULT_NETWORK;
+        }
+    }
+
+    /**
+     * An upload started sending on {@code network}.
+     *
+     * @param priorKbps the system's upstream estimate of the network, 0 if unknown
+     */
+    static synchronized void uploadStarted(long id, Object network, int priorKbps) {
+        final Object key = key(network);
+        final Object previous = sUploads.put(id, key);
+        if (previous != null) {
+            uploadLeft(previous);
+        }
+        final Window window = window(key);
+        window.mActiveUploads++;
+        if (priorKbps > 0) {
+            window.mPrior = priorKbps * 1000L / 8;
+        }
+        sLastNetwork = key;
+    }
+
+    static synchronized void uploadFinished(long id) {
+        final Object key = sUploads.remove(id);
+        if (key != null) {
+            uploadLeft(key);
+        }
+    }
+
+    private static void uploadLeft(Object key) {
+        // the window is gone if its network was lost
+        final Window window = sWindows.get(key);
+        if (window != null) {
+            window.mActiveUploads--;
+        }
+    }
+
+    /**
+     * @param bytes bytes {@code id} sent since the last call
+     */
+    static synchronized void record(long id, long bytes) {
+        final Window window = sWindows.get(sUploads.get(id));
+        if (window != null && bytes > 0) {
+            window.add(SystemClock.elapsedRealtime(), bytes);
+        }
+    }
+
+    /**
+     * @return estimated aggregate bytes per second of the network {@code id} runs on, or of the
+     * last used network if it isn't running; 0 if unknown
+     */
+    static synchronized long getBandwidth(long id) {
+        final Object key = sUploads.get(id);
+        final Window window = sWindows.get(key != null ? key : sLastNetwork);
+        return window == null ? 0 : window.estimate(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @return bytes per second {@code id} can expect, its fair share of its network; 0 if unknown
+     */
+    static synchronized long getUploadShare(long id) {
+        final Object key = sUploads.get(id);
+        final Window window = sWindows.get(key != null ? key : sLastNetwork);
+        if (window == null) {
+            return 0;
+        }
+        // an upload that isn't running yet will share with the running ones
+        final int uploads = window.mActiveUploads + (key != null ? 0 : 1);
+        return window.estimate(SystemClock.elapsedRealtime()) / Math.max(1, uploads);
+    }
+
+    /**
+     * @return how many uploads should run at once on the last used network
+     */
+    static synchronized int getConcurrency() {
+        final Window window = sWindows.get(sLastNetwork);
+        final long bandwidth = window == null ? 0 : window.estimate(SystemClock.elapsedRealtime());
+        if (bandwidth <= 0) {
+            return MAX_CONCURRENT;
+        }
+        final long concurrency = bandwidth / MIN_SHARE_PER_UPLOAD;
+        return (int) Math.max(MIN_CONCURRENT, Math.min(MAX_CONCURRENT, concurrency));
+    }
+
+    /**
+     * @return chunk size for the request body of {@code id}, a power of two
+     */
+    static int getChunkSize(long id) {
+        final long share = getUploadShare(id);
+        if (share <= 0) {
+            return MIN_CHUNK_SIZE;
+        }
+        final long target = share * CHUNK_MILLIS / 1000;
+        int size = MIN_CHUNK_SIZE;
+        while (size < MAX_CHUNK_SIZE && size * 2L <= target) {
+            size *= 2;
+        }
+        return size;
+    }
+
+    private static final class Window {
+        private final long[] mBytes = new long[BUCKET_COUNT];
+        private final long[] mBucket = new long[BUCKET_COUNT];
+        private int mActiveUploads;
+        private long mPrior;
+        private long mLastEstimate;
+
+        Window() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBucket[i] = -1;
+            }
+        }
+
+        void add(long now, long bytes) {
+            final long bucket = now / BUCKET_MILLIS;
+            final int slot = (int) (bucket % BUCKET_COUNT);
+            if (mBucket[slot] != bucket) {
+                mBucket[slot] = bucket;
+                mBytes[slot] = 0;
+            }
+            mBytes[slot] += bytes;
+        }
+
+        long estimate(long now) {
+            final long current = now / BUCKET_MILLIS;
+            long bytes = 0;
+            int buckets = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                // the current second isn't over yet and would drag the estimate down
+                if (mBucket[i] < current && mBucket[i] > current - BUCKET_COUNT) {
+                    bytes += mBytes[i];
+                    buckets++;
+                }
+            }
+            if (buckets > 0) {
+                mLastEstimate = bytes * 1000 / (buckets * BUCKET_MILLIS);
+            }
+            return mLastEstimate > 0 ? mLastEstimate : mPrior;
+        }
+    }
+}
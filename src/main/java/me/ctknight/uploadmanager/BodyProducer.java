@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Data of an upload generated on demand, see
+ * {@link UploadManager.Request#setSource(BodyProducer, String)}.
+ * <p>
+ * Called on upload threads. {@link #open()} is called again for every attempt, and once more if
+ * the data has to be written to disk for the upload to outlive the process.
+ */
+public interface BodyProducer {
+
+    /**
+     * @return exact number of bytes every stream returned by {@link #open()} has
+     */
+    long getLength();
+
+    /**
+     * @return a new stream over the data from its start, closed by the caller
+     */
+    InputStream open() throws IOException;
+}
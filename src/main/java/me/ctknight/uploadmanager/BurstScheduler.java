@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import me.ctknight.uploadmanager.util.LogUtils;
+
+/**
+ * Holds deferrable uploads back and releases them together, so the cellular radio is woken once
+ * per burst instead of once per upload. A burst goes out when enough uploads are held, when the
+ * oldest one has waited long enough, or when the radio is up anyway.
+ * <p>
+ * Only touched by the update thread of {@link UploadService}, except for the statistics.
+ */
+final class BurstScheduler {
+
+    private static final String TAG = LogUtils.makeTag(BurstScheduler.class);
+
+    private static volatile int sBatchThreshold = UploadContract.Constants.DEFAULT_BURST_THRESHOLD;
+    private static volatile long sMaxDelayMillis = UploadContract.Constants.DEFAULT_BURST_MAX_DELAY;
+
+    // statistics, guarded by BurstScheduler.class
+    private static long sBurstCount;
+    private static long sDispatchedCount;
+    private static long sTotalHoldMillis;
+    private static long sMaxHoldMillis;
+    private static long sCompletedCount;
+    private static long sTotalCompletionMillis;
+    private static long sMaxCompletionMillis;
+
+    static void setPolicy(int batchThreshold, long maxDelayMillis) {
+        if (batchThreshold < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid burst policy");
+        }
+        sBatchThreshold = batchThreshold;
+        sMaxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Start every held upload if the burst is due.
+     *
+     * @param held        deferrable uploads that are ready to start
+     * @param radioActive whether the radio is already up, by an interactive upload or otherwise
+     * @return milliseconds until the burst is due, 0 if it went out and started uploads, or
+     * {@link Long#MAX_VALUE} if nothing is held
+     */
+    long dispatchIfDue(List<UploadInfo> held, boolean radioActive, long now,
+                       ExecutorService executor) {
+        if (held.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (UploadInfo info : held) {
+            oldest = Math.min(oldest, info.mEnqueueTime);
+        }
+        final long dueAt = oldest + sMaxDelayMillis;
+        if (!radioActive && held.size() < sBatchThreshold && dueAt > now) {
+            return dueAt - now;
+        }
+
+        Log.v(TAG, "dispatchIfDue: releasing " + held.size() + " deferred uploads, radioActive="
+                + radioActive);
+        int started = 0;
+        long holdMillis = 0;
+        long maxHoldMillis = 0;
+        for (UploadInfo info : held) {
+            if (info.startUploadIfReady(executor)) {
+                info.mHeld = false;
+                final long hold = Math.max(0, now - info.mEnqueueTime);
+                holdMillis += hold;
+                maxHoldMillis = Math.max(maxHoldMillis, hold);
+                started++;
+            }
+        }
+        if (started > 0) {
+            synchronized (BurstScheduler.class) {
+                sBurstCount++;
+                sDispatchedCount += started;
+                sTotalHoldMillis += holdMillis;
+                sMaxHoldMillis = Math.max(sMaxHoldMillis, maxHoldMillis);
+            }
+            return 0;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Called when a deferrable upload finished successfully.
+     */
+    static void recordCompletion(UploadInfo info, long now) {
+        if (info.mEnqueueTime <= 0) {
+            return;
+        }
+        final long latency = Math.max(0, now - info.mEnqueueTime);
+        synchronized (BurstScheduler.class) {
+            sCompletedCount++;
+            sTotalCompletionMillis += latency;
+            sMaxCompletionMillis = Math.max(sMaxCompletionMillis, latency);
+        }
+    }
+
+    static synchronized BurstStats getStats() {
+        return new BurstStats(sBurstCount, sDispatchedCount, sTotalHoldMillis, sMaxHoldMillis,
+                sCompletedCount, sTotalCompletionMillis, sMaxCompletionMillis);
+    }
+}
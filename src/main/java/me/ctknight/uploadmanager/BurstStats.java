@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+/**
+ * How well deferrable uploads were batched since the process started, see
+ * {@link UploadManager#getBurstStats()}.
+ */
+public final class BurstStats {
+
+    private final long mBurstCount;
+    private final long mDispatchedCount;
+    private final long mTotalHoldMillis;
+    private final long mMaxHoldMillis;
+    private final long mCompletedCount;
+    private final long mTotalCompletionMillis;
+    private final long mMaxCompletionMillis;
+
+    BurstStats(long burstCount, long dispatchedCount, long totalHoldMillis, long maxHoldMillis,
+               long completedCount, long totalCompletionMillis, long maxCompletionMillis) {
+        mBurstCount = burstCount;
+        mDispatchedCount = dispatchedCount;
+        mTotalHoldMillis = totalHoldMillis;
+        mMaxHoldMillis = maxHoldMillis;
+        mCompletedCount = completedCount;
+        mTotalCompletionMillis = totalCompletionMillis;
+        mMaxCompletionMillis = maxCompletionMillis;
+    }
+
+    /**
+     * @return number of bursts sent, each of them woke the radio at most once
+     */
+    public long getBurstCount() {
+        return mBurstCount;
+    }
+
+    /**
+     * @return number of deferrable uploads started by a burst
+     */
+    public long getDispatchedCount() {
+        return mDispatchedCount;
+    }
+
+    /**
+     * @return average number of uploads per burst, the higher the better
+     */
+    public double getAverageBurstSize() {
+        return mBurstCount == 0 ? 0 : (double) mDispatchedCount / mBurstCount;
+    }
+
+    /**
+     * @return average time between enqueue and start of a deferrable upload, in milliseconds
+     */
+    public long getAverageHoldMillis() {
+        return mDispatchedCount == 0 ? 0 : mTotalHoldMillis / mDispatchedCount;
+    }
+
+    public long getMaxHoldMillis() {
+        return mMaxHoldMillis;
+    }
+
+    /**
+     * @return number of deferrable uploads that finished successfully
+     */
+    public long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    /**
+     * @return average time between enqueue and successful completion of a deferrable upload,
+     * in milliseconds
+     */
+    public long getAverageCompletionMillis() {
+        return mCompletedCount == 0 ? 0 : mTotalCompletionMillis / mCompletedCount;
+    }
+
+    public long getMaxCompletionMillis() {
+        return mMaxCompletionMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "BurstStats{bursts=" + mBurstCount
+                + ", dispatched=" + mDispatchedCount
+                + ", avgBurstSize=" + getAverageBurstSize()
+                + ", avgHoldMs=" + getAverageHoldMillis()
+                + ", maxHoldMs=" + mMaxHoldMillis
+                + ", completed=" + mCompletedCount
+                + ", avgCompletionMs=" + getAverageCompletionMillis()
+                + ", maxCompletionMs=" + mMaxCompletionMillis + "}";
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+/**
+ * Result of {@link UploadManager#enqueueAsync(UploadManager.Request, EnqueueCallback)}, delivered
+ * on the main thread.
+ */
+public interface EnqueueCallback {
+
+    /**
+     * The upload row exists. Its title and MIME type may still be resolved in the background,
+     * it doesn't start before that is done.
+     *
+     * @param id the id {@link UploadManager#enqueue(UploadManager.Request)} would have returned
+     */
+    void onEnqueued(long id);
+
+    /**
+     * The upload couldn't be inserted.
+     */
+    void onEnqueueFailed(Exception e);
+}
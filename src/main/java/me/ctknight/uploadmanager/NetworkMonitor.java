@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import android.annotation.TargetApi;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.ctknight.uploadmanager.util.LogUtils;
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+
+import static me.ctknight.uploadmanager.util.NetworkUtils.isMobileNetwork;
+
+/**
+ * Keeps track of usable networks for {@link UploadService}.
+ * <p>
+ * On Lollipop and later this listens to {@link ConnectivityManager.NetworkCallback} and pokes the
+ * service as soon as a network appears or its capabilities change, so waiting uploads don't have
+ * to wait for a CONNECTIVITY_ACTION broadcast. It also hands out clients whose sockets are bound
+ * to one network, so an upload stays on the network it started on.
+ * Older releases fall back to {@link ConnectivityManager#getActiveNetworkInfo()} and the
+ * broadcast handled by {@link UploadReceiver}.
+ */
+final class NetworkMonitor {
+
+    private static final String TAG = LogUtils.makeTag(NetworkMonitor.class);
+
+    private final Context mContext;
+    private final ConnectivityManager mConnectivityManager;
+    private final Runnable mOnNetworkChanged;
+
+    // guarded by itself
+    private final Map<Network, NetworkCapabilities> mNetworks = new HashMap<>();
+    private final Map<Network, OkHttpClient> mBoundClients = new HashMap<>();
+    private ConnectivityManager.NetworkCallback mCallback;
+    private ConnectivityManager.OnNetworkActiveListener mActiveListener;
+
+    NetworkMonitor(Context context, Runnable onNetworkChanged) {
+        mContext = context.getApplicationContext();
+        mConnectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mOnNetworkChanged = onNetworkChanged;
+    }
+
+    void start() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mConnectivityManager == null || mCallback != null) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // we are running again, the wake-up request isn't needed anymore
+            mConnectivityManager.unregisterNetworkCallback(getWakeUpIntent());
+        }
+        mCallback = new Callback();
+        mConnectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build(), mCallback);
+        // lets held deferrable uploads ride along when someone else wakes the radio
+        mActiveListener = new ConnectivityManager.OnNetworkActiveListener() {
+            @Override
+            public void onNetworkActive() {
+                mOnNetworkChanged.run();
+            }
+        };
+        mConnectivityManager.addDefaultNetworkActiveListener(mActiveListener);
+    }
+
+    /**
+     * Stop listening. If uploads are still waiting for a network that isn't there, ask the
+     * system to wake {@link UploadReceiver} once it shows up.
+     */
+    void stop(boolean waitingForNetwork, boolean waitingForUnmetered) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mConnectivityManager == null || mCallback == null) {
+            return;
+        }
+        mConnectivityManager.unregisterNetworkCallback(mCallback);
+        mCallback = null;
+        mConnectivityManager.removeDefaultNetworkActiveListener(mActiveListener);
+        mActiveListener = null;
+        synchronized (mNetworks) {
+            mNetworks.clear();
+            mBoundClients.clear();
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+        final boolean satisfied = waitingForUnmetered
+                ? getNetworkState(false) == UploadInfo.NetworkState.OK
+                : getNetworkState(true) != UploadInfo.NetworkState.NO_CONNECTION;
+        // if a suitable network is already up the request would fire right away and restart us
+        // for nothing, uploads that still wait in that case wait for something else
+        if (waitingForNetwork && !satisfied) {
+            final NetworkRequest.Builder builder = new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+            if (waitingForUnmetered) {
+                builder.addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+            }
+            mConnectivityManager.registerNetworkCallback(builder.build(), getWakeUpIntent());
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private PendingIntent getWakeUpIntent() {
+        final Intent intent = new Intent(UploadContract.ACTION_NETWORK_AVAILABLE);
+        intent.setClass(mContext, UploadReceiver.class);
+        return PendingIntent.getBroadcast(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * @return the network new uploads should be bound to, or null if there is none or this
+     * release can't bind sockets.
+     */
+    Network getDefaultNetwork() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mConnectivityManager == null) {
+            return null;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return mConnectivityManager.getActiveNetwork();
+        }
+        final NetworkInfo active = mConnectivityManager.getActiveNetworkInfo();
+        if (active == null) {
+            return null;
+        }
+        for (Network network : mConnectivityManager.getAllNetworks()) {
+            final NetworkInfo info = mConnectivityManager.getNetworkInfo(network);
+            if (info != null && info.getType() == active.getType() && info.isConnected()) {
+                return network;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param allowMetered whether the upload may use a metered (mobile) network
+     */
+    UploadInfo.NetworkState getNetworkState(boolean allowMetered) {
+        if (mConnectivityManager == null) {
+            Log.w(TAG, "getNetworkState: couldn't get connectivity manager");
+            return UploadInfo.NetworkState.NO_CONNECTION;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return getLegacyNetworkState(allowMetered);
+        }
+
+        final Network network = getDefaultNetwork();
+        if (network == null) {
+            return UploadInfo.NetworkState.NO_CONNECTION;
+        }
+        final NetworkCapabilities capabilities = getCapabilities(network);
+        final NetworkInfo info = mConnectivityManager.getNetworkInfo(network);
+        if (capabilities == null || info == null || !info.isConnected()) {
+            return UploadInfo.NetworkState.NO_CONNECTION;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) {
+            // captive portal or no actual internet access yet
+            return UploadInfo.NetworkState.NO_CONNECTION;
+        }
+        if (NetworkInfo.DetailedState.BLOCKED.equals(info.getDetailedState())) {
+            return UploadInfo.NetworkState.BLOCKED;
+        }
+        if (!allowMetered && !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) {
+            return UploadInfo.NetworkState.CANNOT_USE_ROAMING;
+        }
+        return UploadInfo.NetworkState.OK;
+    }
+
+    private UploadInfo.NetworkState getLegacyNetworkState(boolean allowMetered) {
+        final NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return UploadInfo.NetworkState.NO_CONNECTION;
+        }
+        if (NetworkInfo.DetailedState.BLOCKED.equals(info.getDetailedState())) {
+            return UploadInfo.NetworkState.BLOCKED;
+        }
+        if (isMobileNetwork(info) && !allowMetered) {
+            return UploadInfo.NetworkState.CANNOT_USE_ROAMING;
+        }
+        return UploadInfo.NetworkState.OK;
+    }
+
+    /**
+     * @return whether {@code network} is still connected; with a null network, whether any
+     * network is.
+     */
+    boolean isConnected(Network network) {
+        if (network == null || mConnectivityManager == null) {
+            return getNetworkState(true) != UploadInfo.NetworkState.NO_CONNECTION;
+        }
+        final NetworkInfo info = mConnectivityManager.getNetworkInfo(network);
+        return info != null && info.isConnected();
+    }
+
+    /**
+     * @return whether the default network is metered and its radio is already up, so sending
+     * now costs little extra energy. Unmetered networks don't have an expensive radio tail and
+     * always count as active.
+     */
+    boolean isDefaultNetworkActive() {
+        if (getNetworkState(false) == UploadInfo.NetworkState.OK) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mConnectivityManager == null) {
+            return false;
+        }
+        return mConnectivityManager.isDefaultNetworkActive();
+    }
+
+    /**
+     * @return the upstream bandwidth the system estimates for {@code network}, in Kbps, or 0 if
+     * unknown.
+     */
+    int getUpstreamBandwidthKbps(Network network) {
+        if (network == null) {
+            return 0;
+        }
+        final NetworkCapabilities capabilities = getCapabilities(network);
+        return capabilities == null ? 0 : capabilities.getLinkUpstreamBandwidthKbps();
+    }
+
+    /**
+     * @return a client sharing {@code client}'s pool and settings whose sockets and DNS lookups
+     * go through {@code network}. Clients are cached per network so connections are reused.
+     */
+    OkHttpClient bindClient(OkHttpClient client, final Network network) {
+        if (network == null) {
+            return client;
+        }
+        synchronized (mNetworks) {
+            OkHttpClient bound = mBoundClients.get(network);
+            if (bound == null) {
+                bound = client.newBuilder()
+                        .socketFactory(network.getSocketFactory())
+                        .dns(new Dns() {
+                            @Override
+                            public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+                                return Arrays.asList(network.getAllByName(hostname));
+                            }
+                        })
+                        .build();
+                mBoundClients.put(network, bound);
+            }
+            return bound;
+        }
+    }
+
+    private NetworkCapabilities getCapabilities(Network network) {
+        synchronized (mNetworks) {
+            final NetworkCapabilities capabilities = mNetworks.get(network);
+            if (capabilities != null) {
+                return capabilities;
+            }
+        }
+        return mConnectivityManager.getNetworkCapabilities(network);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class Callback extends ConnectivityManager.NetworkCallback {
+        @Override
+        public void onAvailable(Network network) {
+            mOnNetworkChanged.run();
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+            synchronized (mNetworks) {
+                mNetworks.put(network, networkCapabilities);
+            }
+            mOnNetworkChanged.run();
+        }
+
+        @Override
+        public void onLost(Network network) {
+            synchronized (mNetworks) {
+                mNetworks.remove(network);
+                mBoundClients.remove(network);
+            }
+            BandwidthEstimator.networkLost(network);
+            mOnNetworkChanged.run();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import me.ctknight.uploadmanager.util.LogUtils;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Reads a server response in {@link UploadContract.Constants#BUFFER_SIZE} chunks without ever
+ * holding more than {@link UploadContract.Constants#MAX_INLINE_RESPONSE_BYTES} of it in memory.
+ * Anything larger is streamed to {@link #getResponseFile(Context, long)}, up to
+ * {@link UploadContract.Constants#MAX_CAPTURED_RESPONSE_BYTES}, and is served to clients by
+ * {@link UploadProvider#openFile(android.net.Uri, String)}.
+ */
+final class ResponseCapture {
+
+    private static final String TAG = LogUtils.makeTag(ResponseCapture.class);
+    private static final String RESPONSE_DIR = "upload_responses";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ResponseCapture() {
+    }
+
+    static File getResponseFile(Context context, long id) {
+        return new File(new File(context.getFilesDir(), RESPONSE_DIR), Long.toString(id));
+    }
+
+    /**
+     * Drain {@code body} and return it if it fits inline, or null if it was written to
+     * {@link #getResponseFile(Context, long)} instead. The body is always closed.
+     */
+    static String capture(Context context, long id, ResponseBody body) throws IOException {
+        final File file = getResponseFile(context, id);
+        final Buffer inline = new Buffer();
+        final Buffer chunk = new Buffer();
+        BufferedSink spill = null;
+        long captured = 0;
+        try {
+            final BufferedSource source = body.source();
+            while (captured < UploadContract.Constants.MAX_CAPTURED_RESPONSE_BYTES) {
+                final long want = Math.min(UploadContract.Constants.BUFFER_SIZE,
+                        UploadContract.Constants.MAX_CAPTURED_RESPONSE_BYTES - captured);
+                final long read = source.read(chunk, want);
+                if (read == -1) {
+                    break;
+                }
+                captured += read;
+
+                if (spill == null
+                        && inline.size() + read <= UploadContract.Constants.MAX_INLINE_RESPONSE_BYTES) {
+                    inline.write(chunk, read);
+                    continue;
+                }
+                if (spill == null) {
+                    final File dir = file.getParentFile();
+                    if (!dir.isDirectory() && !dir.mkdirs()) {
+                        throw new IOException("Couldn't create " + dir);
+                    }
+                    spill = Okio.buffer(Okio.sink(file));
+                    spill.write(inline, inline.size());
+                }
+                spill.write(chunk, read);
+                spill.emitCompleteSegments();
+            }
+            if (captured >= UploadContract.Constants.MAX_CAPTURED_RESPONSE_BYTES) {
+                Log.w(TAG, "capture: response of " + id + " truncated at " + captured + " bytes");
+            }
+        } finally {
+            body.close();
+            if (spill != null) {
+                spill.close();
+            }
+        }
+
+        if (spill != null) {
+            return null;
+        }
+        if (file.exists() && !file.delete()) {
+            // stale response from an earlier attempt
+            Log.w(TAG, "capture: couldn't delete " + file);
+        }
+
+        final MediaType contentType = body.contentType();
+        final Charset charset = contentType != null ? contentType.charset(UTF_8) : UTF_8;
+        return inline.readString(charset);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import okhttp3.Headers;
+
+import static java.net.HttpURLConnection.HTTP_BAD_GATEWAY;
+import static java.net.HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+import static java.net.HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+
+/**
+ * Decides what the HTTP status of a finished upload request means for the upload.
+ * Install a custom policy with {@link UploadManager#setResponsePolicy(ResponsePolicy)}.
+ */
+public interface ResponsePolicy {
+
+    /**
+     * The server accepted the upload.
+     */
+    int ACTION_SUCCESS = 0;
+
+    /**
+     * The request failed for a transient reason and should be retried with backoff.
+     */
+    int ACTION_RETRY = 1;
+
+    /**
+     * The request failed and retrying won't help.
+     */
+    int ACTION_FAIL = 2;
+
+    /**
+     * @param code    HTTP status code of the response
+     * @param headers response headers, the body is not available here
+     * @return one of {@link #ACTION_SUCCESS}, {@link #ACTION_RETRY} or {@link #ACTION_FAIL}
+     */
+    int classify(int code, Headers headers);
+
+    /**
+     * 2xx is a success; 408, 429, 500, 502, 503 and 504 are retried; anything else fails.
+     */
+    class Default implements ResponsePolicy {
+        public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+        @Override
+        public int classify(int code, Headers headers) {
+            if (code >= 200 && code < 300) {
+                return ACTION_SUCCESS;
+            }
+            switch (code) {
+                case HTTP_CLIENT_TIMEOUT:
+                case HTTP_TOO_MANY_REQUESTS:
+                case HTTP_INTERNAL_ERROR:
+                case HTTP_BAD_GATEWAY:
+                case HTTP_UNAVAILABLE:
+                case HTTP_GATEWAY_TIMEOUT:
+                    return ACTION_RETRY;
+                default:
+                    return ACTION_FAIL;
+            }
+        }
+    }
+}
@@ -7,6 +7,8 @@ package me.ctknight.uploadmanager;
 import android.content.ContentResolver;
 import android.net.Uri;
 
+import me.ctknight.uploadmanager.util.ProgressThrottle;
+
 public final class UploadContract {
 
     public static final String ACTION_OPEN = "me.ctknight.uploadmanager.action.UPLOAD_OPEN";
@@ -16,6 +18,8 @@ public final class UploadContract {
     public static final String ACTION_MANUAL_REDO = "me.ctknight.uploadmanager.action.UPLOAD_REDO";
     public static final String ACTION_CANCEL = "me.ctknight.uploadmanager.action.UPLOAD_CANCEL";
     public static final String ACTION_HIDE = "me.ctknight.uploadmanager.action.UPLOAD_HIDE";
+    // sent by the system through NetworkMonitor when a network uploads were waiting for shows up
+    public static final String ACTION_NETWORK_AVAILABLE = "me.ctknight.uploadmanager.action.NETWORK_AVAILABLE";
 
     public static boolean isOnGoing(UploadInfo upload) {
         return upload.mStatus == UPLOAD_STATUS.RUNNING;
@@ -36,7 +40,8 @@ public final class UploadContract {
                 upload.mStatus == UPLOAD_STATUS.UNKNOWN_ERROR ||
                 upload.mStatus == UPLOAD_STATUS.DEVICE_NOT_FOUND_ERROR ||
                 upload.mStatus == UPLOAD_STATUS.HTTP_DATA_ERROR ||
-                upload.mStatus == UPLOAD_STATUS.FILE_ERROR;
+                upload.mStatus == UPLOAD_STATUS.FILE_ERROR ||
+                isStatusError(upload.mStatus);
     }
 
     public static boolean isFailed(int status) {
@@ -46,7 +51,8 @@ public final class UploadContract {
                 status == UPLOAD_STATUS.UNKNOWN_ERROR ||
                 status == UPLOAD_STATUS.DEVICE_NOT_FOUND_ERROR ||
                 status == UPLOAD_STATUS.HTTP_DATA_ERROR ||
-                status == UPLOAD_STATUS.FILE_ERROR;
+                status == UPLOAD_STATUS.FILE_ERROR ||
+                isStatusError(status);
     }
 
     public static boolean isStatusError(int status) {
@@ -70,12 +76,12 @@ public final class UploadContract {
         /**
          * The minimum amount of progress that has to be done before the progress bar gets updated
          */
-        public static final int MIN_PROGRESS_STEP = 65536;
+        public static final int MIN_PROGRESS_STEP = ProgressThrottle.MIN_PROGRESS_STEP;
         /**
          * The minimum amount of time that has to elapse before the progress bar gets updated, in
          * ms
          */
-        public static final long MIN_PROGRESS_TIME = 2000;
+        public static final long MIN_PROGRESS_TIME = ProgressThrottle.MIN_PROGRESS_TIME;
         /**
          * The number of times that the download manager will retry its network
          * operations when no progress is happening before it gives up.
@@ -101,6 +107,31 @@ public final class UploadContract {
          * The time is in seconds.
          */
         public static final int RETRY_FIRST_DELAY = 30;
+        /**
+         * The number of server response bytes kept in the database row, larger responses are
+         * streamed to a file that the row only references.
+         */
+        public static final int MAX_INLINE_RESPONSE_BYTES = 4 * 1024;
+        /**
+         * The maximum number of server response bytes captured, the rest is discarded.
+         */
+        public static final long MAX_CAPTURED_RESPONSE_BYTES = 16 * 1024 * 1024;
+        /**
+         * Number of held deferrable uploads that triggers a burst.
+         */
+        public static final int DEFAULT_BURST_THRESHOLD = 5;
+        /**
+         * The longest a deferrable upload is held before its burst goes out anyway, in millis.
+         */
+        public static final long DEFAULT_BURST_MAX_DELAY = 15 * 60 * 1000;
+        /**
+         * {@link android.net.TrafficStats} tag of the sockets opened for uploads.
+         */
+        public static final int TRAFFIC_STATS_TAG = 0x55504c44;
+        /**
+         * The shortest time between two notification updates that only move progress, in millis.
+         */
+        public static final long DEFAULT_NOTIFICATION_PROGRESS_INTERVAL = 1000;
     }
 
     public static final class UPLOAD_COLUMNS implements android.provider.BaseColumns {
@@ -130,7 +161,20 @@ public final class UploadContract {
         public static final String COLUMN_ALLOW_ROAMING = "allowroaming";
         public static final String COLUMN_ERROR_MSG = "errormsg";
         public static final String COLUMN_SERVER_RESPONSE = "response";
+        // path of the file holding a response too large for COLUMN_SERVER_RESPONSE
+        public static final String COLUMN_SERVER_RESPONSE_FILE = "responsefile";
         public static final String COLOMN_DATA_FIELD_NAME = "datafiled";
+        public static final String COLUMN_DEFERRABLE = "isdeferrable";
+        // set by the provider on insert
+        public static final String COLUMN_ENQUEUE_TIME = "enqueuetime";
+        // tag set by Request.setGroup(), "group" is an SQL keyword
+        public static final String COLUMN_GROUP = "uploadgroup";
+        // higher starts first, 0 by default
+        public static final String COLUMN_PRIORITY = "priority";
+        // set by Request.setResumable(), the target accepts tus style offset requests
+        public static final String COLUMN_RESUMABLE = "resumable";
+        // set by Request.setRawBody(), the file is the request body; null for a multipart POST
+        public static final String COLUMN_RAW_METHOD = "rawmethod";
         //TODO: check if all columns are initialized in database onCreate() and UploadInfo
 
     }
@@ -140,13 +184,23 @@ public final class UploadContract {
         public static final String UPLOAD_AUTHORITY = "me.ctknight.uploadmanager.uploadprovider";
         public static final Uri UPLOAD_AUTHORITY_URI = Uri.parse(ContentResolver.SCHEME_CONTENT + "://" + UPLOAD_AUTHORITY);
         public static final Uri CONTENT_URI = UPLOAD_AUTHORITY_URI.buildUpon().appendPath(TABLE_NAME).build();
+        // uploads/#/response, readable through ContentResolver.openFileDescriptor()
+        public static final String RESPONSE_SEGMENT = "response";
+        /**
+         * Query parameter limiting the number of rows a query returns.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
     }
 
     public static final class UPLOAD_STATUS {
 
         /*not started yet*/
         public static final int PENDING = 0;
+        /*inserted by enqueueAsync, title and MIME type are still being resolved*/
+        public static final int RESOLVING = 190;
         public static final int RUNNING = 192;
+        /*paused through UploadManager.pause(), waits for resume()*/
+        public static final int PAUSED_BY_APP = 193;
 
         public static final int WAITING_TO_RETRY = 194;
         public static final int WAITING_FOR_NETWORK = 195;
@@ -182,6 +236,58 @@ public final class UploadContract {
 
     }
 
+    /**
+     * Timing of each attempt of an upload, one row per attempt, read through
+     * {@link UploadManager#queryMetrics(long)}. Durations are in milliseconds.
+     */
+    public static final class UPLOAD_METRICS implements android.provider.BaseColumns {
+        public static final String TABLE_NAME = "uploadmetrics";
+        // uploads/#/metrics
+        public static final String URI_SEGMENT = "metrics";
+        public static final String COLUMN_UPLOAD_ID = "uploadid";
+        // 1 for the first attempt
+        public static final String COLUMN_ATTEMPT = "attempt";
+        // wall clock time the attempt started
+        public static final String COLUMN_START_TIME = "starttime";
+        // from enqueue, or from the end of the previous attempt, to the start of this one
+        public static final String COLUMN_QUEUE_WAIT = "queuewait";
+        public static final String COLUMN_DNS = "dns";
+        // TCP connect, without TLS
+        public static final String COLUMN_CONNECT = "connect";
+        public static final String COLUMN_TLS = "tls";
+        // sending the request headers and body
+        public static final String COLUMN_REQUEST_WRITE = "requestwrite";
+        // from the last request byte to the first response byte
+        public static final String COLUMN_SERVER_WAIT = "serverwait";
+        public static final String COLUMN_RESPONSE_READ = "responseread";
+        public static final String COLUMN_TOTAL = "total";
+        // request body bytes sent
+        public static final String COLUMN_BYTES = "bytes";
+        // 0 if no response was received
+        public static final String COLUMN_HTTP_CODE = "httpcode";
+        public static final String COLUMN_ERROR = "error";
+    }
+
+    public static final class UPLOAD_GROUPS implements android.provider.BaseColumns {
+        public static final String TABLE_NAME = "uploadgroups";
+        public static final Uri CONTENT_URI =
+                UPLOAD_URIS.UPLOAD_AUTHORITY_URI.buildUpon().appendPath(TABLE_NAME).build();
+        // the tag passed to Request.setGroup()
+        public static final String COLUMN_NAME = "name";
+        public static final String COLUMN_UID = "uid";
+        // the counts and bytes are kept up to date by triggers on the uploads table
+        public static final String COLUMN_NUM_UPLOADS = "numuploads";
+        public static final String COLUMN_NUM_SUCCEEDED = "numsucceeded";
+        public static final String COLUMN_NUM_FAILED = "numfailed";
+        // uploads whose size isn't known yet count as 0
+        public static final String COLUMN_TOTAL_BYTES = "totalbytes";
+        public static final String COLUMN_CURRENT_BYTES = "currentbytes";
+        // cancel the rest of the group once an upload fails
+        public static final String COLUMN_ALL_OR_NOTHING = "allornothing";
+        // set when the completion broadcast was sent, cleared when an upload runs again
+        public static final String COLUMN_COMPLETED = "completed";
+    }
+
     public static final class RequestContent {
         public static final String REQUEST_CONTENT_DB_TABLE = "requestcontent";
         public static final String COLUMN_UPLOAD_ID = "uploadid";
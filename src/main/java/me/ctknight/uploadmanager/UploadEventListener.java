@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import android.content.ContentValues;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Times the phases of one upload attempt. {@link UploadThread} tags each request with a new
+ * instance and {@link #FACTORY} hands it to OkHttp, so no listener is created for other calls.
+ * Phases that didn't happen, like DNS and connect on a pooled connection, stay 0.
+ */
+final class UploadEventListener extends EventListener {
+
+    static final EventListener.Factory FACTORY = new EventListener.Factory() {
+        @Override
+        public EventListener create(Call call) {
+            final Object tag = call.request().tag();
+            return tag instanceof UploadEventListener ? (EventListener) tag : EventListener.NONE;
+        }
+    };
+
+    private final long mId;
+    private long mCallStart;
+    private long mDnsStart;
+    private long mDnsNanos;
+    private long mConnectStart;
+    private long mConnectNanos;
+    private long mSecureConnectStart;
+    private long mTlsNanos;
+    private long mRequestStart;
+    private long mRequestEnd;
+    // whether the async trace sections were begun, see UploadTrace
+    private boolean mBodyTraced;
+    private boolean mRequestTraced;
+    private long mResponseStart;
+    private long mResponseEnd;
+    private long mCallEnd;
+    private long mRequestBodyBytes;
+
+    UploadEventListener(long id) {
+        mId = id;
+    }
+
+    private static long now() {
+        return System.nanoTime();
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(Math.max(0, nanos));
+    }
+
+    @Override
+    public void callStart(Call call) {
+        mCallStart = now();
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        mDnsStart = now();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        mDnsNanos += now() - mDnsStart;
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        mConnectStart = now();
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        mSecureConnectStart = now();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        mTlsNanos += now() - mSecureConnectStart;
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                           Protocol protocol) {
+        mConnectNanos += now() - mConnectStart;
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                              Protocol protocol, IOException ioe) {
+        mConnectNanos += now() - mConnectStart;
+    }
+
+    @Override
+    public void requestHeadersStart(Call call) {
+        if (mRequestStart == 0) {
+            mRequestStart = now();
+        }
+    }
+
+    @Override
+    public void requestBodyStart(Call call) {
+        mBodyTraced = UploadTrace.beginAsync("upload:body", mId);
+    }
+
+    @Override
+    public void requestBodyEnd(Call call, long byteCount) {
+        UploadTrace.endAsync("upload:body", mId, mBodyTraced);
+        mBodyTraced = false;
+        mRequestEnd = now();
+        mRequestBodyBytes = byteCount;
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        mResponseStart = now();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+        mRequestTraced = UploadTrace.beginAsync("upload:request", mId);
+    }
+
+    @Override
+    public void connectionReleased(Call call, Connection connection) {
+        UploadTrace.endAsync("upload:request", mId, mRequestTraced);
+        mRequestTraced = false;
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        if (mRequestEnd == 0) {
+            // the server answered before reading the whole body
+            mRequestEnd = mResponseStart;
+        }
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        mResponseEnd = now();
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        mCallEnd = now();
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        mCallEnd = now();
+    }
+
+    /**
+     * @return bytes of request body sent, or 0 if the body wasn't written completely
+     */
+    long getRequestBodyBytes() {
+        return mRequestBodyBytes;
+    }
+
+    /**
+     * @return time from sending the request to the first response byte in millis, or -1 if no
+     * response arrived
+     */
+    long getTimeToFirstByteMillis() {
+        return mResponseStart == 0 || mRequestStart == 0 ? -1 : toMillis(mResponseStart - mRequestStart);
+    }
+
+    /**
+     * @return request body bytes per second, or -1 if the body wasn't sent completely
+     */
+    long getRequestThroughput() {
+        if (mRequestBodyBytes <= 0 || mRequestStart == 0 || mRequestEnd == 0) {
+            return -1;
+        }
+        return (long) (mRequestBodyBytes * 1e9 / Math.max(1, mRequestEnd - mRequestStart));
+    }
+
+    /**
+     * Fill a row of {@link UploadContract.UPLOAD_METRICS}.
+     */
+    void writeTo(ContentValues values) {
+        final long end = mCallEnd != 0 ? mCallEnd : now();
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_DNS, toMillis(mDnsNanos));
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_CONNECT, toMillis(mConnectNanos - mTlsNanos));
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_TLS, toMillis(mTlsNanos));
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_REQUEST_WRITE,
+                mRequestStart == 0 ? 0 : toMillis((mRequestEnd != 0 ? mRequestEnd : end) - mRequestStart));
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_SERVER_WAIT,
+                mResponseStart == 0 || mRequestEnd == 0 ? 0 : toMillis(mResponseStart - mRequestEnd));
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_RESPONSE_READ,
+                mResponseStart == 0 ? 0 : toMillis((mResponseEnd != 0 ? mResponseEnd : end) - mResponseStart));
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_TOTAL,
+                mCallStart == 0 ? 0 : toMillis(end - mCallStart));
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_BYTES, mRequestBodyBytes);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import me.ctknight.uploadmanager.util.LogUtils;
+
+/**
+ * Delivers {@link UploadListener} events. {@link UploadService} reports state changes it sees in
+ * its update passes and {@link UploadThread} reports progress from memory.
+ */
+final class UploadEvents {
+
+    private static final String TAG = LogUtils.makeTag(UploadEvents.class);
+
+    private static final CopyOnWriteArrayList<Registration> sRegistrations =
+            new CopyOnWriteArrayList<>();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private static volatile long sProgressIntervalMillis = 500;
+
+    private UploadEvents() {
+    }
+
+    /**
+     * @param ids uploads to listen to, all if empty
+     */
+    static void addListener(UploadListener listener, long[] ids) {
+        removeListener(listener);
+        sRegistrations.add(new Registration(listener, ids));
+    }
+
+    static void removeListener(UploadListener listener) {
+        for (Registration registration : sRegistrations) {
+            if (registration.mListener == listener) {
+                sRegistrations.remove(registration);
+            }
+        }
+    }
+
+    static void setProgressInterval(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid progress interval");
+        }
+        sProgressIntervalMillis = intervalMillis;
+    }
+
+    static long getProgressInterval() {
+        return sProgressIntervalMillis;
+    }
+
+    static boolean hasListeners() {
+        return !sRegistrations.isEmpty();
+    }
+
+    static void stateChanged(final long id, final int status) {
+        for (final Registration registration : sRegistrations) {
+            if (registration.accepts(id)) {
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            registration.mListener.onStateChanged(id, status);
+                        } catch (RuntimeException e) {
+                            Log.w(TAG, "stateChanged: listener failed", e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    static void progress(final long id, final long currentBytes, final long totalBytes,
+                         final long bytesPerSecond) {
+        for (final Registration registration : sRegistrations) {
+            if (registration.accepts(id)) {
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            registration.mListener.onProgress(id, currentBytes, totalBytes,
+                                    bytesPerSecond);
+                        } catch (RuntimeException e) {
+                            Log.w(TAG, "progress: listener failed", e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static final class Registration {
+        final UploadListener mListener;
+        // sorted, null for all uploads
+        final long[] mIds;
+
+        Registration(UploadListener listener, long[] ids) {
+            mListener = listener;
+            if (ids == null || ids.length == 0) {
+                mIds = null;
+            } else {
+                mIds = ids.clone();
+                Arrays.sort(mIds);
+            }
+        }
+
+        boolean accepts(long id) {
+            return mIds == null || Arrays.binarySearch(mIds, id) >= 0;
+        }
+    }
+}
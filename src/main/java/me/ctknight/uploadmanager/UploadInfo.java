@@ -10,13 +10,11 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.net.Uri;
 import android.support.v4.util.ArrayMap;
 import android.text.TextUtils;
-import android.util.Log;
 
+import java.io.File;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
@@ -25,17 +23,54 @@ import java.util.concurrent.Future;
 
 import me.ctknight.uploadmanager.util.FileUtils;
 import me.ctknight.uploadmanager.util.LogUtils;
-
-import static me.ctknight.uploadmanager.util.NetworkUtils.isConnected;
-import static me.ctknight.uploadmanager.util.NetworkUtils.isMobileNetwork;
+import me.ctknight.uploadmanager.util.PriorityExecutor;
 
 public class UploadInfo {
 
     public static final String TAG = LogUtils.makeTag(UploadInfo.class);
 
     public static final String EXTRA_IS_WIFI_REQUIRED = "isWifiRequired";
+
+    /**
+     * Columns read by {@link Reader}. The server response is left out on purpose, it can be large
+     * and is only needed by clients, see {@link UploadManager#openServerResponse(long)}.
+     */
+    public static final String[] PROJECTION = new String[]{
+            UploadContract.UPLOAD_COLUMNS._ID,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_TARGET_URL,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_FILE_URI,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_UID,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_MIME_TYPE,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_VISIBILITY,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_STATUS,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_NUM_FAILED,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_RETRY_AFTER,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_LAST_MODIFICATION,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_NOTIFICATION_PACKAGE,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_NOTIFICATION_CLASS,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_NOTIFICATION_EXTRAS,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_TOTAL_BYTES,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_CURRENT_BYTES,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_DELETED,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_TITLE,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_DESCRIPTION,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_CONTROL,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_BYPASS_NETWORK_CHANGE,
+            UploadContract.RequestContent.COLUMN_USER_AGENT,
+            UploadContract.RequestContent.COLUMN_REFERER,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_ALLOW_ROAMING,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_DEFERRABLE,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_ENQUEUE_TIME,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_ERROR_MSG,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_RESUMABLE,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_RAW_METHOD,
+            UploadContract.UPLOAD_COLUMNS.COLOMN_DATA_FIELD_NAME,
+            UploadContract.UPLOAD_COLUMNS.COLUMN_PRIORITY
+    };
     private final Context mContext;
     private final UploadNotifier mNotifier;
+    private final UploadLocks mLocks;
+    private final NetworkMonitor mNetworkMonitor;
     //for building a intent.
     public long mId;
     public String mTargetUrl;
@@ -58,11 +93,24 @@ public class UploadInfo {
     public int mVisibility;
     public int mControl;
     public boolean mBypass;
-    public String mServerResponse;
     public String mUserAgent;
     public String mReferer;
     public boolean mAllowRoaming;
     public String mDataFieldName;
+    public boolean mDeferrable;
+    public long mEnqueueTime;
+    public String mErrorMsg;
+    public boolean mResumable;
+    public String mRawMethod;
+    public int mPriority;
+    // set by each update pass of UploadService, only used for its state snapshot
+    long mNextActionTime;
+    boolean mHeld;
+    // notification tag of a finished upload, cached by UploadNotifier
+    String mNotificationTag;
+    int mNotificationType;
+    // last status sent to UploadListeners
+    int mReportedStatus = -1;
 
     private Map<String, String> mRequestHeaders = new ArrayMap<>();
     private Map<String, String> mContentDisposition = new ArrayMap<>();
@@ -71,9 +119,12 @@ public class UploadInfo {
 
     private UploadThread mTask;
 
-    public UploadInfo(Context context, UploadNotifier notifier) {
+    public UploadInfo(Context context, UploadNotifier notifier, UploadLocks locks,
+                      NetworkMonitor networkMonitor) {
         mContext = context.getApplicationContext();
         mNotifier = notifier;
+        mLocks = locks;
+        mNetworkMonitor = networkMonitor;
     }
 
     /**
@@ -141,10 +192,11 @@ public class UploadInfo {
             case UploadContract.UPLOAD_STATUS.PENDING://explicitly marked as ready to upload
             case UploadContract.UPLOAD_STATUS.RUNNING://upload was interrupted (proceess kill),
                 //unable to update database
+            case UploadContract.UPLOAD_STATUS.PAUSED_BY_APP://resumed, control is checked above
                 return true;
 
             case UploadContract.UPLOAD_STATUS.WAITING_FOR_NETWORK:
-                return isConnected(mContext);
+                return mNetworkMonitor.getNetworkState(true) != NetworkState.NO_CONNECTION;
             case UploadContract.UPLOAD_STATUS.WAITING_FOR_WIFI:
                 return checkCanUseNetwork() == NetworkState.OK;
 
@@ -161,26 +213,7 @@ public class UploadInfo {
     }
 
     public NetworkState checkCanUseNetwork() {
-        ConnectivityManager connectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
-        if (connectivityManager == null) {
-            Log.w(TAG, "checkCanUseNetwork: couldn't get connectivity manager");
-            return null;
-        }
-
-        final NetworkInfo info = connectivityManager.getActiveNetworkInfo();
-
-        boolean isMobile = (info != null && isMobileNetwork(info));
-
-        if (info == null || !info.isConnected()) {
-            return NetworkState.NO_CONNECTION;
-        }
-        if (NetworkInfo.DetailedState.BLOCKED.equals(info.getDetailedState())) {
-            return NetworkState.BLOCKED;
-        }
-        if (isMobile && !mAllowRoaming) {
-            return NetworkState.CANNOT_USE_ROAMING;
-        }
-        return NetworkState.OK;
+        return mNetworkMonitor.getNetworkState(mAllowRoaming);
     }
 
     public long restartTime(long now) {
@@ -211,6 +244,28 @@ public class UploadInfo {
         return when - now;
     }
 
+    /**
+     * @return whether {@link #startUploadIfReady(ExecutorService)} would start a new task now
+     */
+    boolean isReadyToStart() {
+        synchronized (this) {
+            final boolean isActive = mSubmittedTask != null && !mSubmittedTask.isDone();
+            return !isActive && isReadyToUpload();
+        }
+    }
+
+    /**
+     * @return this upload for {@link UploadStateSnapshot}
+     */
+    UploadStateSnapshot.UploadState toState(long speed) {
+        synchronized (this) {
+            final boolean isActive = mSubmittedTask != null && !mSubmittedTask.isDone();
+            return new UploadStateSnapshot.UploadState(mId, mStatus, mControl, isActive, mHeld,
+                    mCurrentBytes, mTotalBytes, isActive ? speed : 0, mNumFailed, mNextActionTime,
+                    mLastMod, mErrorMsg);
+        }
+    }
+
     public boolean startUploadIfReady(ExecutorService executorService) {
         synchronized (this) {
             final boolean isReady = isReadyToUpload();
@@ -223,13 +278,40 @@ public class UploadInfo {
                     mContext.getContentResolver().update(getUploadsUri(), values, null, null);
                 }
 
-                mTask = new UploadThread(mContext, mNotifier, this);
-                mSubmittedTask = executorService.submit(mTask);
+                mTask = new UploadThread(mContext, mNotifier, mLocks, mNetworkMonitor, this);
+                final PriorityExecutor.Task task = new PriorityExecutor.Task(mTask, mId, mPriority);
+                executorService.execute(task);
+                mSubmittedTask = task;
             }
             return isReady;
         }
     }
 
+    /**
+     * Move the task of this upload to the place of its current priority if it is still queued
+     * in {@code executor}, the queue only orders tasks when they are added.
+     */
+    void requeueIfReprioritized(PriorityExecutor executor) {
+        synchronized (this) {
+            if (mSubmittedTask instanceof PriorityExecutor.Task) {
+                executor.reprioritize((PriorityExecutor.Task) mSubmittedTask, mPriority);
+            }
+        }
+    }
+
+    /**
+     * Stop the running attempt of a paused or deleted upload right away, instead of when its next
+     * progress callback notices. The task still finishes on its own, so a resumed upload only
+     * starts again once the stopped attempt wrote its state.
+     */
+    void stopTask() {
+        synchronized (this) {
+            if (mSubmittedTask != null && !mSubmittedTask.isDone()) {
+                mTask.stop();
+            }
+        }
+    }
+
     /**
      * Constants used to indicate network state for a specific download, after
      * applying any requested constraints.
@@ -299,8 +381,9 @@ public class UploadInfo {
             return type;
         }
 
-        public UploadInfo newUploadInfo(Context context, UploadNotifier notifier) {
-            final UploadInfo info = new UploadInfo(context, notifier);
+        public UploadInfo newUploadInfo(Context context, UploadNotifier notifier, UploadLocks locks,
+                                        NetworkMonitor networkMonitor) {
+            final UploadInfo info = new UploadInfo(context, notifier, locks, networkMonitor);
             updateFromDatabase(info);
             readRequestHeaders(info);
             readContentDisposition(info);
@@ -308,17 +391,28 @@ public class UploadInfo {
         }
 
         public void updateFromDatabase(UploadInfo info) {
+            final boolean traced = UploadTrace.begin("UploadInfo.Reader.updateFromDatabase");
+            try {
+                readFromCursor(info);
+            } finally {
+                UploadTrace.end(traced);
+            }
+        }
+
+        private void readFromCursor(UploadInfo info) {
             info.mId = getLong(UploadContract.UPLOAD_COLUMNS._ID);
             info.mTargetUrl = getString(UploadContract.UPLOAD_COLUMNS.COLUMN_TARGET_URL);
             info.mFileUri = getString(UploadContract.UPLOAD_COLUMNS.COLUMN_FILE_URI);
-            info.mFileName = FileUtils.getFile(mContext, Uri.parse(info.mFileUri)).getName();
+            final Uri fileUri = Uri.parse(info.mFileUri);
+            // sources and remote documents have no local file, their URI ends with the name
+            final File file = UploadSources.isSource(fileUri) ? null : FileUtils.getFile(mContext, fileUri);
+            info.mFileName = file != null ? file.getName() : fileUri.getLastPathSegment();
             info.mUid = getInt(UploadContract.UPLOAD_COLUMNS.COLUMN_UID);
             info.mMimeType = normalizeMimeType(getString(UploadContract.UPLOAD_COLUMNS.COLUMN_MIME_TYPE));
             info.mVisibility = getInt(UploadContract.UPLOAD_COLUMNS.COLUMN_VISIBILITY);
             info.mStatus = getInt(UploadContract.UPLOAD_COLUMNS.COLUMN_STATUS);
             info.mNumFailed = getInt(UploadContract.UPLOAD_COLUMNS.COLUMN_NUM_FAILED);
-            int retryRedirect = getInt(UploadContract.UPLOAD_COLUMNS.RETRY_AFTER_X_REDIRECT_COUNT);
-            info.mRetryAfter = retryRedirect & 0xfffffff;
+            info.mRetryAfter = getInt(UploadContract.UPLOAD_COLUMNS.COLUMN_RETRY_AFTER);
             info.mLastMod = getLong(UploadContract.UPLOAD_COLUMNS.COLUMN_LAST_MODIFICATION);
             info.mPackage = getString(UploadContract.UPLOAD_COLUMNS.COLUMN_NOTIFICATION_PACKAGE);
             info.mClass = getString(UploadContract.UPLOAD_COLUMNS.COLUMN_NOTIFICATION_CLASS);
@@ -333,7 +427,13 @@ public class UploadInfo {
             info.mUserAgent = getString(UploadContract.RequestContent.COLUMN_USER_AGENT);
             info.mReferer = getString(UploadContract.RequestContent.COLUMN_REFERER);
             info.mAllowRoaming = getInt(UploadContract.UPLOAD_COLUMNS.COLUMN_ALLOW_ROAMING) != 0;
-            info.mServerResponse = getString(UploadContract.UPLOAD_COLUMNS.COLUMN_SERVER_RESPONSE);
+            info.mDeferrable = getInt(UploadContract.UPLOAD_COLUMNS.COLUMN_DEFERRABLE) != 0;
+            info.mEnqueueTime = getLong(UploadContract.UPLOAD_COLUMNS.COLUMN_ENQUEUE_TIME);
+            info.mErrorMsg = getString(UploadContract.UPLOAD_COLUMNS.COLUMN_ERROR_MSG);
+            info.mResumable = getInt(UploadContract.UPLOAD_COLUMNS.COLUMN_RESUMABLE) != 0;
+            info.mRawMethod = getString(UploadContract.UPLOAD_COLUMNS.COLUMN_RAW_METHOD);
+            info.mDataFieldName = getString(UploadContract.UPLOAD_COLUMNS.COLOMN_DATA_FIELD_NAME);
+            info.mPriority = getInt(UploadContract.UPLOAD_COLUMNS.COLUMN_PRIORITY);
             synchronized (this) {
                 info.mControl = getInt(UploadContract.UPLOAD_COLUMNS.COLUMN_CONTROL);
             }
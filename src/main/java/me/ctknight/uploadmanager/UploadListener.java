@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+/**
+ * Receives changes of uploads straight from the upload service of this process, register with
+ * {@link UploadManager#registerUploadListener(UploadListener, long...)}. Called on the main
+ * thread, nothing is read from the database for it.
+ */
+public interface UploadListener {
+
+    /**
+     * The upload moved to another state. Removed uploads report
+     * {@link UploadContract.UPLOAD_STATUS#CANCELED}.
+     *
+     * @param status one of {@link UploadContract.UPLOAD_STATUS}
+     */
+    void onStateChanged(long id, int status);
+
+    /**
+     * Progress of a running upload, at most once per
+     * {@link UploadManager#setProgressEventInterval(long)}.
+     *
+     * @param totalBytes      size of the request body, or -1 if unknown
+     * @param bytesPerSecond  the upload's share of the estimated bandwidth, 0 if unknown
+     */
+    void onProgress(long id, long currentBytes, long totalBytes, long bytesPerSecond);
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+import android.util.Log;
+
+import me.ctknight.uploadmanager.util.LogUtils;
+
+/**
+ * One partial wakelock and one high-performance Wi-Fi lock shared by every {@link UploadThread}
+ * of the service, instead of a wakelock per thread. The wakelock is held while any thread is
+ * running, the Wi-Fi lock only while a request is on the wire. Both are dropped as soon as the
+ * last holder lets go.
+ */
+final class UploadLocks {
+
+    private static final String TAG = LogUtils.makeTag(UploadLocks.class);
+
+    private final PowerManager.WakeLock mWakeLock;
+    private final WifiManager.WifiLock mWifiLock;
+    private int mWakeHolders;
+    private int mWifiHolders;
+
+    UploadLocks(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final PowerManager pm = (PowerManager) appContext.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "UploadManager:" + TAG);
+        mWakeLock.setReferenceCounted(false);
+
+        final WifiManager wm = (WifiManager) appContext.getSystemService(Context.WIFI_SERVICE);
+        if (wm != null) {
+            mWifiLock = wm.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, TAG);
+            mWifiLock.setReferenceCounted(false);
+        } else {
+            mWifiLock = null;
+        }
+    }
+
+    synchronized void acquireWakeLock() {
+        if (mWakeHolders++ == 0) {
+            mWakeLock.acquire();
+        }
+    }
+
+    synchronized void releaseWakeLock() {
+        if (mWakeHolders == 0) {
+            Log.w(TAG, "releaseWakeLock: not held");
+            return;
+        }
+        if (--mWakeHolders == 0) {
+            mWakeLock.release();
+        }
+    }
+
+    synchronized void acquireWifiLock() {
+        if (mWifiHolders++ == 0 && mWifiLock != null) {
+            mWifiLock.acquire();
+        }
+    }
+
+    synchronized void releaseWifiLock() {
+        if (mWifiHolders == 0) {
+            Log.w(TAG, "releaseWifiLock: not held");
+            return;
+        }
+        if (--mWifiHolders == 0 && mWifiLock != null) {
+            mWifiLock.release();
+        }
+    }
+
+    /**
+     * Drop both locks no matter who still holds them, for when the service goes away.
+     */
+    synchronized void releaseAll() {
+        if (mWakeHolders > 0) {
+            Log.w(TAG, "releaseAll: " + mWakeHolders + " wakelock holders left");
+            mWakeHolders = 0;
+            mWakeLock.release();
+        }
+        if (mWifiHolders > 0) {
+            mWifiHolders = 0;
+            if (mWifiLock != null) {
+                mWifiLock.release();
+            }
+        }
+    }
+}
@@ -5,31 +5,47 @@
 package me.ctknight.uploadmanager;
 
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import me.ctknight.uploadmanager.util.FileUtils;
+import me.ctknight.uploadmanager.util.LogUtils;
 import me.ctknight.uploadmanager.util.UriUtils;
 
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_COLUMNS.COLOMN_DATA_FIELD_NAME;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_COLUMNS.COLUMN_ALLOW_ROAMING;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_COLUMNS.COLUMN_CURRENT_BYTES;
+import static me.ctknight.uploadmanager.UploadContract.UPLOAD_COLUMNS.COLUMN_DEFERRABLE;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_COLUMNS.COLUMN_LAST_MODIFICATION;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_COLUMNS.COLUMN_MIME_TYPE;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_COLUMNS.COLUMN_TARGET_URL;
@@ -139,6 +155,16 @@ public class UploadManager {
      */
     public final static String COLUMN_LAST_MODIFIED_TIMESTAMP = COLUMN_LAST_MODIFICATION;
 
+    /**
+     * Group the upload belongs to, see {@link Request#setGroup(String)}, or null.
+     */
+    public final static String COLUMN_GROUP = UploadContract.UPLOAD_COLUMNS.COLUMN_GROUP;
+
+    /**
+     * Priority of the upload, see {@link Request#setPriority(int)}.
+     */
+    public final static String COLUMN_PRIORITY = UploadContract.UPLOAD_COLUMNS.COLUMN_PRIORITY;
+
     /**
      * Value of {@link #COLUMN_STATUS} when the upload is waiting to start.
      */
@@ -254,11 +280,24 @@ public class UploadManager {
      */
     public final static int PAUSED_UNKNOWN = 4;
 
+    /**
+     * Value of {@link #COLUMN_REASON} when the upload was paused by {@link #pause(long...)}.
+     */
+    public final static int PAUSED_BY_APP = 5;
+
     /**
      * Broadcast intent action sent by the upload manager when a upload completes.
      */
     public final static String ACTION_UPLOAD_COMPLETE = "me.ctknight.uploadmanager.intent.action.UPLOAD_COMPLETE";
 
+    /**
+     * Broadcast intent action sent to this app when every upload of a group finished, see
+     * {@link #createGroup(String, boolean)}. Carries {@link #EXTRA_GROUP} and
+     * {@link #EXTRA_GROUP_SUCCESSFUL}.
+     */
+    public final static String ACTION_GROUP_COMPLETE =
+            "me.ctknight.uploadmanager.intent.action.UPLOAD_GROUP_COMPLETE";
+
     /**
      * Broadcast intent action sent by the upload manager when the user clicks on a running
      * upload, either from a system notification or from the uploads UI.
@@ -284,6 +323,17 @@ public class UploadManager {
      */
     public static final String EXTRA_UPLOAD_ID = "extra_upload_id";
 
+    /**
+     * Intent extra included with {@link #ACTION_GROUP_COMPLETE} intents, the name of the group.
+     */
+    public static final String EXTRA_GROUP = "extra_upload_group";
+
+    /**
+     * Intent extra included with {@link #ACTION_GROUP_COMPLETE} intents, false if any upload of
+     * the group failed.
+     */
+    public static final String EXTRA_GROUP_SUCCESSFUL = "extra_upload_group_successful";
+
     /**
      * When clicks on multiple notifications are received, the following
      * provides an array of upload ids corresponding to the upload notification that was
@@ -307,6 +357,8 @@ public class UploadManager {
             COLUMN_TOTAL_BYTES + " AS " + COLUMN_TOTAL_SIZE_BYTES,
             COLUMN_LAST_MODIFICATION + " AS " + COLUMN_LAST_MODIFIED_TIMESTAMP,
             COLUMN_CURRENT_BYTES + " AS " + COLUMN_BYTES_UPLOADED_SO_FAR,
+            COLUMN_GROUP,
+            COLUMN_PRIORITY,
         /* add the following 'computed' columns to the cursor.
          * they are not 'returned' by the database, but their inclusion
          * eliminates need to have lot of methods in CursorTranslator
@@ -314,8 +366,40 @@ public class UploadManager {
             "'placeholder' AS " + COLUMN_LOCAL_URI,
             "'placeholder' AS " + COLUMN_REASON
     };
+    /**
+     * Provider projection of each public column.
+     */
+    private static final Map<String, String> PUBLIC_COLUMNS = new HashMap<>();
+
+    static {
+        for (String column : UNDERLYING_COLUMNS) {
+            final int as = column.lastIndexOf(" AS ");
+            PUBLIC_COLUMNS.put(as < 0 ? column : column.substring(as + 4), column);
+        }
+    }
+
     private static volatile UploadManager mUploadManager;
+    // one thread, so async enqueues are inserted in call order
+    private static final ExecutorService sEnqueueExecutor = Executors.newSingleThreadExecutor();
+    // enqueueAsync() inserts after this is set, so RESOLVING rows enqueued earlier belong to a
+    // process that died before resolving them, see UploadService
+    static final long sLoadTime = System.currentTimeMillis();
+    private static final String TAG = LogUtils.makeTag(UploadManager.class);
+    // IDs per UPDATE of a bulk operation, keeps each statement a few KiB long
+    private static final int MAX_IDS_PER_STATEMENT = 1000;
+    // unfinished and completely enqueued, enqueueAsync() only resolves rows still RESOLVING
+    private static final String PAUSABLE_SELECTION = COLUMN_STATUS + " < " + SUCCESS
+            + " AND " + COLUMN_STATUS + " != " + UploadContract.UPLOAD_STATUS.RESOLVING;
+    // paused by pause(), resume() only writes those
+    private static final String PAUSED_SELECTION = UploadContract.UPLOAD_COLUMNS.COLUMN_CONTROL
+            + " = " + UploadContract.CONTROL.PAUSED;
+    // paused uploads that show as paused by the app, one waiting to retry keeps its status so
+    // its retry time still holds after resume()
+    private static final String PAUSED_STATUS_SELECTION = PAUSABLE_SELECTION
+            + " AND " + UploadContract.UPLOAD_COLUMNS.COLUMN_CONTROL + " = " + UploadContract.CONTROL.PAUSED
+            + " AND " + COLUMN_STATUS + " != " + UploadContract.UPLOAD_STATUS.WAITING_TO_RETRY;
     private ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
     private Uri mBaseUri = UploadContract.UPLOAD_URIS.CONTENT_URI;
 
     private UploadManager(Context context) {
@@ -340,31 +424,72 @@ public class UploadManager {
     }
 
     /**
-     * Get a parameterized SQL WHERE clause to select a bunch of IDs.
+     * Get a SQL WHERE clause to select a bunch of IDs.
      */
     static String getWhereClauseForIds(long[] ids) {
-        StringBuilder whereClause = new StringBuilder();
-        whereClause.append("(");
-        for (int i = 0; i < ids.length; i++) {
-            if (i > 0) {
-                whereClause.append("OR ");
+        return getWhereClauseForIds(ids, 0, ids.length);
+    }
+
+    /**
+     * Get a SQL WHERE clause to select {@code ids[from]} to {@code ids[to - 1]}.
+     * <p>
+     * The IDs are written into the clause as numbers instead of bound, so any number of them
+     * fits below SQLite's limit of 999 parameters, and SQLite looks them up as one IN list
+     * instead of planning an OR term for each.
+     */
+    static String getWhereClauseForIds(long[] ids, int from, int to) {
+        StringBuilder whereClause = new StringBuilder((to - from) * 8 + 16);
+        whereClause.append(BaseColumns._ID);
+        whereClause.append(" IN (");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                whereClause.append(',');
             }
-            whereClause.append(BaseColumns._ID);
-            whereClause.append(" = ? ");
+            whereClause.append(ids[i]);
         }
         whereClause.append(")");
         return whereClause.toString();
     }
 
+    private int updateByIds(long[] ids, ContentValues values) {
+        return updateByIds(ids, values, null);
+    }
+
     /**
-     * Get the selection args for a clause returned by {@link #getWhereClauseForIds(long[])}.
+     * Update the uploads with the given IDs. Large sets are split into statements of
+     * {@link #MAX_IDS_PER_STATEMENT} IDs, all applied in one transaction of the provider.
+     *
+     * @param selection further restricts the rows updated, or null
+     * @return number of rows updated
      */
-    static String[] getWhereArgsForIds(long[] ids) {
-        String[] whereArgs = new String[ids.length];
-        for (int i = 0; i < ids.length; i++) {
-            whereArgs[i] = Long.toString(ids[i]);
+    private int updateByIds(long[] ids, ContentValues values, String selection) {
+        if (ids.length <= MAX_IDS_PER_STATEMENT) {
+            return mResolver.update(mBaseUri, values,
+                    andSelection(selection, getWhereClauseForIds(ids)), null);
+        }
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(
+                (ids.length + MAX_IDS_PER_STATEMENT - 1) / MAX_IDS_PER_STATEMENT);
+        for (int from = 0; from < ids.length; from += MAX_IDS_PER_STATEMENT) {
+            final int to = Math.min(ids.length, from + MAX_IDS_PER_STATEMENT);
+            operations.add(ContentProviderOperation.newUpdate(mBaseUri)
+                    .withValues(values)
+                    .withSelection(andSelection(selection, getWhereClauseForIds(ids, from, to)), null)
+                    .build());
+        }
+        try {
+            int count = 0;
+            for (ContentProviderResult result : mResolver.applyBatch(
+                    UploadContract.UPLOAD_URIS.UPLOAD_AUTHORITY, operations)) {
+                count += result.count;
+            }
+            return count;
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IllegalStateException("Couldn't update " + ids.length + " uploads", e);
         }
-        return whereArgs;
+    }
+
+    private static String andSelection(String selection, String idClause) {
+        return selection == null ? idClause : "(" + selection + ") AND " + idClause;
     }
 
     public long enqueue(Request request) {
@@ -374,6 +499,85 @@ public class UploadManager {
         return id;
     }
 
+    /**
+     * Like {@link #enqueue(Request)}, but without blocking the calling thread.
+     *
+     * @see #enqueueAsync(Request, EnqueueCallback)
+     */
+    public Future<Long> enqueueAsync(Request request) {
+        return enqueueAsync(request, null);
+    }
+
+    /**
+     * Enqueue an upload on a background thread. The row is inserted first, so the id is
+     * available after a single insert; the file name and MIME type, which may need queries to
+     * other providers, are resolved afterwards. The upload doesn't start before that is done.
+     *
+     * @param callback notified on the main thread, may be null
+     * @return the id of the new upload, available once inserted
+     */
+    public Future<Long> enqueueAsync(Request request, @Nullable final EnqueueCallback callback) {
+        // the request may be changed or enqueued again once this returns
+        final Request.Snapshot snapshot = request.snapshot();
+        return sEnqueueExecutor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                final long id;
+                try {
+                    final ContentValues values = new ContentValues(snapshot.mValues);
+                    values.put(COLUMN_STATUS, UploadContract.UPLOAD_STATUS.RESOLVING);
+                    final Uri uploadUri = mResolver.insert(UploadContract.UPLOAD_URIS.CONTENT_URI, values);
+                    if (uploadUri == null) {
+                        throw new IllegalStateException("Couldn't insert upload");
+                    }
+                    id = Long.parseLong(uploadUri.getLastPathSegment());
+                } catch (final RuntimeException e) {
+                    snapshot.releaseSource();
+                    if (callback != null) {
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onEnqueueFailed(e);
+                            }
+                        });
+                    }
+                    throw e;
+                }
+                if (callback != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onEnqueued(id);
+                        }
+                    });
+                }
+                // queued behind other inserts, so a burst of enqueues gets its ids first
+                sEnqueueExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resolveMetadata(snapshot, id);
+                    }
+                });
+                return id;
+            }
+        });
+    }
+
+    private void resolveMetadata(Request.Snapshot snapshot, long id) {
+        ContentValues values;
+        try {
+            values = snapshot.resolveMetadata();
+        } catch (RuntimeException e) {
+            // upload without a title, the MIME type falls back when the upload starts
+            Log.w(TAG, "resolveMetadata: couldn't resolve upload " + id, e);
+            values = new ContentValues();
+        }
+        values.put(COLUMN_STATUS, PENDING);
+        // only if it wasn't removed or changed in between
+        mResolver.update(getUploadUri(id), values, COLUMN_STATUS + " = ?",
+                new String[]{Integer.toString(UploadContract.UPLOAD_STATUS.RESOLVING)});
+    }
+
     public int remove(long... ids) {
         if (ids == null || ids.length == 0) {
             // called with nothing to remove!
@@ -387,26 +591,48 @@ public class UploadManager {
             return mResolver.update(ContentUris.withAppendedId(mBaseUri, ids[0]), values,
                     null, null);
         }
-        // TODO: 2016/2/5 use bulkinsert() instead
-        return mResolver.update(mBaseUri, values, getWhereClauseForIds(ids),
-                getWhereArgsForIds(ids));
+        return updateByIds(ids, values);
     }
 
     public Cursor query(Query query) {
-        Cursor underlyingCursor = query.runQuery(mResolver, UNDERLYING_COLUMNS, mBaseUri);
+        Cursor underlyingCursor = query.runQuery(mResolver, query.getUnderlyingProjection(), mBaseUri);
         if (underlyingCursor == null) {
             return null;
         }
-        return new CursorTranslator(underlyingCursor, mBaseUri);
+        return new CursorTranslator(underlyingCursor, mBaseUri, query.getColumnCount());
     }
 
     public ParcelFileDescriptor openUploadedFile(long id) throws FileNotFoundException {
         return mResolver.openFileDescriptor(getUploadUri(id), "r");
     }
 
+    /**
+     * Open the response the server sent for the given upload. Large responses are not kept in
+     * the upload row, so this is the only way to read a response in full.
+     *
+     * @throws FileNotFoundException if the upload doesn't exist or no response was recorded yet
+     */
+    public ParcelFileDescriptor openServerResponse(long id) throws FileNotFoundException {
+        return mResolver.openFileDescriptor(getServerResponseUri(id), "r");
+    }
+
+    /**
+     * Stream the response the server sent for the given upload, the caller must close it.
+     *
+     * @see #openServerResponse(long)
+     */
+    public InputStream getServerResponseStream(long id) throws FileNotFoundException {
+        return new ParcelFileDescriptor.AutoCloseInputStream(openServerResponse(id));
+    }
+
+    public Uri getServerResponseUri(long id) {
+        return getUploadUri(id).buildUpon()
+                .appendPath(UploadContract.UPLOAD_URIS.RESPONSE_SEGMENT).build();
+    }
+
     public Uri getUriForUploadedFile(long id) {
         // to check if the file is in cache, get its destination from the database
-        Query query = new Query().setFilterById(id);
+        Query query = new Query().setFilterById(id).setProjection(COLUMN_STATUS);
         Cursor cursor = null;
         try {
             cursor = query(query);
@@ -429,7 +655,7 @@ public class UploadManager {
     }
 
     public String getMimeTypeForUploadedFile(long id) {
-        Query query = new Query().setFilterById(id);
+        Query query = new Query().setFilterById(id).setProjection(COLUMN_MEDIA_TYPE);
         Cursor cursor = null;
         try {
             cursor = query(query);
@@ -448,8 +674,54 @@ public class UploadManager {
         return null;
     }
 
+    /**
+     * Pause uploads that haven't finished. An attempt in flight is cancelled right away; the
+     * uploads then wait with {@link #STATUS_PAUSED} and {@link #PAUSED_BY_APP} until
+     * {@link #resume(long...)}. Uploads waiting to retry keep {@link #PAUSED_WAITING_TO_RETRY},
+     * so they don't retry before their server or backoff allows once resumed. Uploads still
+     * being enqueued by {@link #enqueueAsync(Request, EnqueueCallback)} are left alone.
+     *
+     * @return number of uploads paused
+     */
+    public int pause(long... ids) {
+        if (ids == null || ids.length == 0) {
+            throw new IllegalArgumentException("input param 'ids' can't be null");
+        }
+        // control first: once set nothing starts, so no upload changes status in between
+        final int paused = updateByIds(ids, getPauseValues(), PAUSABLE_SELECTION);
+        updateByIds(ids, getPausedStatusValues(), PAUSED_STATUS_SELECTION);
+        return paused;
+    }
+
+    /**
+     * Let paused uploads run again. Uploads enqueued with {@link Request#setResumable(boolean)}
+     * continue from the offset their server confirmed, others start over.
+     *
+     * @return number of uploads resumed
+     */
+    public int resume(long... ids) {
+        if (ids == null || ids.length == 0) {
+            throw new IllegalArgumentException("input param 'ids' can't be null");
+        }
+        ContentValues values = new ContentValues();
+        values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_CONTROL, UploadContract.CONTROL.RUN);
+        return updateByIds(ids, values, PAUSED_SELECTION);
+    }
+
+    private static ContentValues getPauseValues() {
+        ContentValues values = new ContentValues();
+        values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_CONTROL, UploadContract.CONTROL.PAUSED);
+        return values;
+    }
+
+    private static ContentValues getPausedStatusValues() {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_STATUS, UploadContract.UPLOAD_STATUS.PAUSED_BY_APP);
+        return values;
+    }
+
     public void restartUpload(long... ids) {
-        Cursor cursor = query(new Query().setFilterById(ids));
+        Cursor cursor = query(new Query().setFilterById(ids).setProjection(COLUMN_ID, COLUMN_STATUS));
         try {
             for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
                 int status = cursor.getInt(cursor.getColumnIndex(COLUMN_STATUS));
@@ -467,13 +739,273 @@ public class UploadManager {
         values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_TOTAL_BYTES, -1);
         values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_STATUS, UploadContract.UPLOAD_STATUS.PENDING);
         values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_NUM_FAILED, 0);
-        mResolver.update(mBaseUri, values, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+        updateByIds(ids, values);
     }
 
     public Uri getUploadUri(long id) {
         return ContentUris.withAppendedId(mBaseUri, id);
     }
 
+    /**
+     * Emit Systrace/Perfetto sections for service passes, database reads and writes, request
+     * building and notification updates, and one async track per upload id. Off by default;
+     * when off the instrumentation costs nothing measurable. Needs API 18.
+     */
+    public void setTracingEnabled(boolean enabled) {
+        UploadTrace.setEnabled(enabled);
+    }
+
+    /**
+     * @return queue contents and per-upload state of the upload service in this process, taken
+     * from memory without touching the database. Cheap enough to poll for monitoring.
+     */
+    public UploadStateSnapshot getStateSnapshot() {
+        return UploadService.getStateSnapshot();
+    }
+
+    /**
+     * Limit how often the notification of running uploads is refreshed for progress alone.
+     * Other changes, like an upload finishing, are shown right away. Defaults to once a second.
+     */
+    public void setNotificationProgressInterval(long intervalMillis) {
+        UploadNotifier.setProgressInterval(intervalMillis);
+    }
+
+    /**
+     * @return estimated upstream bandwidth in bytes per second of the network upload {@code id}
+     * runs on, or of the network used last if it isn't running; 0 if nothing is known yet
+     */
+    public long getEstimatedBandwidth(long id) {
+        return BandwidthEstimator.getBandwidth(id);
+    }
+
+    /**
+     * Predict when an upload finishes from its remaining bytes and its share of the measured
+     * bandwidth. Uploads waiting for a network or a retry are predicted as if they started now.
+     *
+     * @return wall clock time in millis, or -1 if the upload is unknown, finished, of unknown
+     * size or no bandwidth was measured yet
+     */
+    public long getEstimatedCompletionTime(long id) {
+        final Cursor cursor = query(new Query().setFilterById(id).setProjection(COLUMN_STATUS,
+                COLUMN_TOTAL_SIZE_BYTES, COLUMN_BYTES_UPLOADED_SO_FAR));
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            if (!cursor.moveToFirst()
+                    || cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_STATUS)) == STATUS_SUCCESSFUL) {
+                return -1;
+            }
+            final long total = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_TOTAL_SIZE_BYTES));
+            final long current = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_BYTES_UPLOADED_SO_FAR));
+            final long share = BandwidthEstimator.getUploadShare(id);
+            if (total <= 0 || share <= 0) {
+                return -1;
+            }
+            return System.currentTimeMillis() + Math.max(0, total - current) * 1000 / share;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return throughput, latency, retry and database write histograms of the uploads run by
+     * this process
+     */
+    public UploadMetricsSnapshot getMetricsSnapshot() {
+        return UploadMetrics.snapshot();
+    }
+
+    /**
+     * Get a snapshot of all histograms each time an upload succeeds or fails for good.
+     */
+    public void registerMetricsListener(@NonNull UploadMetricsListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener cannot be null");
+        }
+        UploadMetrics.addListener(listener);
+    }
+
+    public void unregisterMetricsListener(UploadMetricsListener listener) {
+        UploadMetrics.removeListener(listener);
+    }
+
+    /**
+     * Get state changes and progress of uploads in this process as they happen, without
+     * querying. Events come from the upload service's memory and are delivered on the main
+     * thread. Registering a listener again replaces its ids.
+     *
+     * @param ids uploads to listen to, or none for all uploads
+     */
+    public void registerUploadListener(@NonNull UploadListener listener, long... ids) {
+        if (listener == null) {
+            throw new NullPointerException("listener cannot be null");
+        }
+        UploadEvents.addListener(listener, ids);
+    }
+
+    public void unregisterUploadListener(UploadListener listener) {
+        UploadEvents.removeListener(listener);
+    }
+
+    /**
+     * Limit how often {@link UploadListener#onProgress(long, long, long, long)} is called for
+     * each upload. Defaults to twice a second.
+     */
+    public void setProgressEventInterval(long intervalMillis) {
+        UploadEvents.setProgressInterval(intervalMillis);
+    }
+
+    /**
+     * Clear all histograms, e.g. after they were exported.
+     */
+    public void resetMetrics() {
+        UploadMetrics.reset();
+    }
+
+    /**
+     * Query the phase timings of each attempt of an upload, oldest attempt first.
+     *
+     * @param id the ID of the upload
+     * @return a Cursor over {@link UploadContract.UPLOAD_METRICS} columns, or null
+     */
+    public Cursor queryMetrics(long id) {
+        return mResolver.query(Uri.withAppendedPath(getUploadUri(id),
+                UploadContract.UPLOAD_METRICS.URI_SEGMENT), null, null, null,
+                UploadContract.UPLOAD_METRICS.COLUMN_ATTEMPT + " ASC");
+    }
+
+    /**
+     * Change how HTTP status codes are mapped to success, retry or failure, for all uploads
+     * started after this call. Defaults to {@link ResponsePolicy.Default}.
+     */
+    public void setResponsePolicy(@NonNull ResponsePolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("policy cannot be null");
+        }
+        UploadThread.setResponsePolicy(policy);
+    }
+
+    /**
+     * Change when held deferrable uploads are released, see {@link Request#setDeferrable(boolean)}.
+     *
+     * @param batchThreshold number of held uploads that triggers a burst
+     * @param maxDelayMillis the longest an upload is held
+     */
+    public void setBurstPolicy(int batchThreshold, long maxDelayMillis) {
+        BurstScheduler.setPolicy(batchThreshold, maxDelayMillis);
+    }
+
+    /**
+     * @return batching efficiency and completion latency of deferrable uploads in this process
+     */
+    public BurstStats getBurstStats() {
+        return BurstScheduler.getStats();
+    }
+
+    /**
+     * Pause all unfinished uploads of a group, see {@link Request#setGroup(String)}, like
+     * {@link #pause(long...)}. They wait until {@link #resumeGroup(String)}.
+     *
+     * @return number of uploads paused
+     */
+    public int pauseGroup(@NonNull String group) {
+        final int paused = updateGroup(group, getPauseValues(), PAUSABLE_SELECTION);
+        updateGroup(group, getPausedStatusValues(), PAUSED_STATUS_SELECTION);
+        return paused;
+    }
+
+    /**
+     * Let the paused uploads of a group run again.
+     *
+     * @return number of uploads resumed
+     */
+    public int resumeGroup(@NonNull String group) {
+        ContentValues values = new ContentValues();
+        values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_CONTROL, UploadContract.CONTROL.RUN);
+        return updateGroup(group, values, PAUSED_SELECTION);
+    }
+
+    /**
+     * Cancel and remove all uploads of a group, like {@link #remove(long...)}, and the group.
+     *
+     * @return number of uploads removed
+     */
+    public int cancelGroup(@NonNull String group) {
+        ContentValues values = new ContentValues();
+        values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_DELETED, 1);
+        // out of the group in the same update, so their last writes and the service's delete
+        // don't count against a group created again under the same name
+        values.putNull(UploadContract.UPLOAD_COLUMNS.COLUMN_GROUP);
+        final int count = updateGroup(group, values);
+        mResolver.delete(UploadContract.UPLOAD_GROUPS.CONTENT_URI,
+                UploadContract.UPLOAD_GROUPS.COLUMN_NAME + " = ?", new String[]{group});
+        return count;
+    }
+
+    /**
+     * Create a group for uploads to be put in with {@link Request#setGroup(String)}, or change
+     * the policy of an existing one. Enqueueing into a group that wasn't created makes one
+     * without all-or-nothing.
+     * <p>
+     * Once every upload of the group finished, {@link #ACTION_GROUP_COMPLETE} is broadcast to
+     * this app. Uploads added after that start the group over.
+     *
+     * @param allOrNothing cancel and remove the unfinished uploads of the group as soon as one
+     *                     fails for good; the group then completes as failed. Uploads that
+     *                     already succeeded are not undone.
+     */
+    public void createGroup(@NonNull String group, boolean allOrNothing) {
+        if (group == null) {
+            throw new IllegalArgumentException("group can't be null");
+        }
+        ContentValues values = new ContentValues();
+        values.put(UploadContract.UPLOAD_GROUPS.COLUMN_NAME, group);
+        values.put(UploadContract.UPLOAD_GROUPS.COLUMN_ALL_OR_NOTHING, allOrNothing);
+        mResolver.insert(UploadContract.UPLOAD_GROUPS.CONTENT_URI, values);
+    }
+
+    /**
+     * Query the progress of a group without going over its uploads: the number of uploads, how
+     * many succeeded or failed, and their total and sent bytes.
+     *
+     * @return a Cursor over {@link UploadContract.UPLOAD_GROUPS} columns with at most one row,
+     * which is refreshed when uploads change; or null
+     */
+    public Cursor queryGroup(@NonNull String group) {
+        return mResolver.query(UploadContract.UPLOAD_GROUPS.CONTENT_URI, null,
+                UploadContract.UPLOAD_GROUPS.COLUMN_NAME + " = ?", new String[]{group}, null);
+    }
+
+    /**
+     * Change the priority of all uploads of a group, see {@link Request#setPriority(int)}.
+     *
+     * @return number of uploads in the group
+     */
+    public int setPriority(@NonNull String group, int priority) {
+        ContentValues values = new ContentValues();
+        values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_PRIORITY, priority);
+        return updateGroup(group, values);
+    }
+
+    private int updateGroup(String group, ContentValues values) {
+        return updateGroup(group, values, null);
+    }
+
+    /**
+     * One UPDATE over the group index, the service picks it up in one pass.
+     *
+     * @param selection further restricts the rows updated, or null
+     */
+    private int updateGroup(String group, ContentValues values, String selection) {
+        if (group == null) {
+            throw new IllegalArgumentException("group can't be null");
+        }
+        return mResolver.update(mBaseUri, values, selection == null ? COLUMN_GROUP + " = ?"
+                : COLUMN_GROUP + " = ? AND (" + selection + ")", new String[]{group});
+    }
+
     public static class Request {
         /**
          * This upload is visible but only shows in the notifications
@@ -508,6 +1040,13 @@ public class UploadManager {
         private String mUserAgent;
         private String mDataFieldName;
         private boolean mMobileAllowed = true;
+        private boolean mDeferrable = false;
+        private String mGroup;
+        private int mPriority = 0;
+        private boolean mResumable = false;
+        private BodyProducer mSource;
+        private String mRawMethod;
+        private long mSourceMemoryBytes;
         /**
          * can take any of the following values: {@link #VISIBILITY_HIDDEN}
          * {@link #VISIBILITY_VISIBLE_COMPLETED}, {@link #VISIBILITY_VISIBLE},
@@ -549,10 +1088,59 @@ public class UploadManager {
          */
         public Request setFileUri(Uri uri) {
             mFileUri = uri;
+            mSource = null;
 
             return this;
         }
 
+        /**
+         * Upload {@code data} instead of a file, without writing it to a file first. The array
+         * is not copied, it must not change until the upload finished. It is written to a
+         * private file when it has to outlive the process, or when the arrays and buffers held
+         * by all uploads get too large.
+         *
+         * @param fileName file name sent to the server, also the default title
+         * @return this object
+         */
+        public Request setSource(@NonNull byte[] data, @NonNull String fileName) {
+            return setSource(UploadSources.of(data), data.length, fileName);
+        }
+
+        /**
+         * Like {@link #setSource(byte[], String)}, for the remaining bytes of {@code data}. The
+         * position of {@code data} is left as it is.
+         *
+         * @return this object
+         */
+        public Request setSource(@NonNull ByteBuffer data, @NonNull String fileName) {
+            return setSource(UploadSources.of(data), data.remaining(), fileName);
+        }
+
+        /**
+         * Upload data generated by {@code producer} while it is sent, like logs or serialized
+         * snapshots. The producer is called from upload threads of this process; when the upload
+         * has to outlive the process its data is written to a private file first.
+         *
+         * @return this object
+         */
+        public Request setSource(@NonNull BodyProducer producer, @NonNull String fileName) {
+            if (producer.getLength() < 0) {
+                throw new IllegalArgumentException("producer must have a length");
+            }
+            return setSource(producer, 0, fileName);
+        }
+
+        private Request setSource(BodyProducer producer, long memoryBytes, String fileName) {
+            if (fileName == null) {
+                throw new IllegalArgumentException("fileName can't be null");
+            }
+            mSource = producer;
+            mSourceMemoryBytes = memoryBytes;
+            mFilename = fileName;
+            mFileUri = null;
+            return this;
+        }
+
         /**
          * Add an HTTP header to be included with the upload request.  The header will be added
          * to
@@ -681,6 +1269,77 @@ public class UploadManager {
             return this;
         }
 
+        /**
+         * Set whether this upload can wait to be sent together with others. Deferrable uploads
+         * are held until enough of them are queued, the oldest one has waited for the maximum
+         * delay, or the radio is already up for other traffic, so the cellular radio isn't woken
+         * for each one. By default, uploads are not deferrable.
+         *
+         * @param deferrable whether the upload may be delayed
+         * @return this object
+         * @see UploadManager#setBurstPolicy(int, long)
+         */
+        public Request setDeferrable(boolean deferrable) {
+            mDeferrable = deferrable;
+            return this;
+        }
+
+        /**
+         * Put this upload into a group, so it can be paused, resumed, cancelled or reprioritized
+         * together with the others, see {@link UploadManager#pauseGroup(String)}.
+         *
+         * @param group any tag chosen by the app, null for no group
+         * @return this object
+         */
+        public Request setGroup(@Nullable String group) {
+            mGroup = group;
+            return this;
+        }
+
+        /**
+         * Set the priority of this upload. When more uploads are ready than run at once, those
+         * with a higher priority are started first. The default is 0.
+         *
+         * @return this object
+         * @see UploadManager#setPriority(String, int)
+         */
+        public Request setPriority(int priority) {
+            mPriority = priority;
+            return this;
+        }
+
+        /**
+         * Declare that the target URL is a resumable upload resource, created by the app with
+         * its server beforehand. Each attempt then asks the server for the offset it has with a
+         * HEAD request answered by an {@code Upload-Offset} header, as in the tus protocol, and
+         * sends the rest of the file raw in a PATCH request from there. If the server doesn't
+         * answer with an offset, the file is posted as multipart from the start as usual.
+         *
+         * @return this object
+         * @see UploadManager#resume(long...)
+         */
+        public Request setResumable(boolean resumable) {
+            mResumable = resumable;
+            return this;
+        }
+
+        /**
+         * Send the file as the request body itself instead of a multipart/form-data part, as
+         * object stores with presigned URLs expect. The body has the exact Content-Length of
+         * the file, or is sent chunked if its provider doesn't know the size, and the MIME type
+         * as Content-Type. Content dispositions and the data field name are not sent.
+         *
+         * @param method "PUT" or "POST", or null for the default multipart POST
+         * @return this object
+         */
+        public Request setRawBody(@Nullable String method) {
+            if (method != null && !"PUT".equals(method) && !"POST".equals(method)) {
+                throw new IllegalArgumentException("Raw bodies are sent with PUT or POST: " + method);
+            }
+            mRawMethod = method;
+            return this;
+        }
+
         /**
          * set data field name.
          * for example :
@@ -699,6 +1358,28 @@ public class UploadManager {
          * @return ContentValues to be passed to UploadProvider.insert()
          */
         ContentValues toContentValues() {
+            final Snapshot snapshot = snapshot();
+            final ContentValues values = snapshot.mValues;
+            values.putAll(snapshot.resolveMetadata());
+            return values;
+        }
+
+        /**
+         * Take what the caller set for one upload. A source is registered as an upload of its
+         * own, with its own copy on disk; the request itself isn't changed, so it can be
+         * enqueued again.
+         */
+        Snapshot snapshot() {
+            final Uri fileUri = mSource != null
+                    ? UploadSources.register(mSource, mSourceMemoryBytes, mFilename) : mFileUri;
+            return new Snapshot(mContext, toBaseContentValues(fileUri), fileUri, mSource != null,
+                    mFilename, mTitle, mMimeType, mDeferrable);
+        }
+
+        /**
+         * @return everything the caller set, without touching the file
+         */
+        private ContentValues toBaseContentValues(Uri fileUri) {
             ContentValues values = new ContentValues();
             assert mTargetUrl != null;
             values.put(COLUMN_TARGET_URL, mTargetUrl.toString());
@@ -711,18 +1392,20 @@ public class UploadManager {
                 encodePayload(values);
             }
             //NOTE: if you change items here , you should also go to UploadProvider and add them in filteredValue.
-            updateFilename(mFileUri);
-            putIfNonNull(values, COLUMN_FILE_URI, mFileUri);
-            putIfNonNull(values, COLUMN_MIME_TYPE, mMimeType == null ? mContext.getContentResolver().getType(mFileUri) : mMimeType);
-            putIfNonNull(values, COLUMN_TITLE, mFilename);
+            putIfNonNull(values, COLUMN_FILE_URI, fileUri);
+            putIfNonNull(values, COLUMN_MIME_TYPE, mMimeType);
             putIfNonNull(values, COLOMN_DATA_FIELD_NAME, mDataFieldName == null ? "file" : mDataFieldName);
-            //use filename as default title.
             putIfNonNull(values, COLUMN_TITLE, mTitle);
             putIfNonNull(values, COLUMN_DESCRIPTION, mDescription);
             putIfNonNull(values, COLUMN_USER_AGENT, mUserAgent);
 
             values.put(COLUMN_VISIBILITY, mNotificationVisibility);
             values.put(COLUMN_ALLOW_ROAMING, mMobileAllowed);
+            values.put(COLUMN_DEFERRABLE, mDeferrable);
+            putIfNonNull(values, COLUMN_GROUP, mGroup);
+            values.put(COLUMN_PRIORITY, mPriority);
+            values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_RESUMABLE, mResumable);
+            putIfNonNull(values, UploadContract.UPLOAD_COLUMNS.COLUMN_RAW_METHOD, mRawMethod);
             return values;
         }
 
@@ -746,22 +1429,91 @@ public class UploadManager {
 
 
         public void updateFilename(Uri uri) {
-            String fullPath = FileUtils.getPath(mContext, uri);
+            final String filename = queryFilename(mContext, uri);
+            if (filename != null) {
+                mFilename = filename;
+            }
+        }
+
+        private static String queryFilename(Context context, Uri uri) {
+            String fullPath = FileUtils.getPath(context, uri);
             if (fullPath != null) {
-                mFilename = new File(fullPath).getName();
-            } else {
-                UriUtils.OpenableInfo info = UriUtils.queryOpenableInfo(uri, mContext);
-                if (info != null) {
-                    mFilename = info.getDisplayName();
-                }
+                return new File(fullPath).getName();
             }
+            UriUtils.OpenableInfo info = UriUtils.queryOpenableInfo(uri, context);
+            return info != null ? info.getDisplayName() : null;
         }
 
-        private void putIfNonNull(ContentValues contentValues, String key, Object value) {
+        private static void putIfNonNull(ContentValues contentValues, String key, Object value) {
             if (value != null) {
                 contentValues.put(key, value.toString());
             }
         }
+
+        /**
+         * One enqueue of a request, fixed when it was enqueued.
+         */
+        static final class Snapshot {
+            final ContentValues mValues;
+            final Uri mFileUri;
+            private final Context mContext;
+            private final boolean mIsSource;
+            private final String mFilename;
+            private final String mTitle;
+            private final String mMimeType;
+            private final boolean mDeferrable;
+
+            Snapshot(Context context, ContentValues values, Uri fileUri, boolean isSource,
+                     String filename, String title, String mimeType, boolean deferrable) {
+                mContext = context;
+                mValues = values;
+                mFileUri = fileUri;
+                mIsSource = isSource;
+                mFilename = filename;
+                mTitle = title;
+                mMimeType = mimeType;
+                mDeferrable = deferrable;
+            }
+
+            /**
+             * Let go of the registered source of an upload that couldn't be inserted.
+             */
+            void releaseSource() {
+                if (mIsSource) {
+                    UploadSources.release(mContext, mFileUri);
+                }
+            }
+
+            /**
+             * Look up what the caller didn't set from the file. This may query other providers,
+             * so {@link UploadManager#enqueueAsync(Request, EnqueueCallback)} runs it in the
+             * background.
+             */
+            ContentValues resolveMetadata() {
+                final ContentValues values = new ContentValues();
+                if (mIsSource) {
+                    // deferred uploads wait long enough for the process to die
+                    if (mDeferrable) {
+                        UploadSources.spill(mContext, mFileUri);
+                    } else {
+                        UploadSources.spillIfOverBudget(mContext, mFileUri);
+                    }
+                    putIfNonNull(values, COLUMN_TITLE, mTitle == null ? mFilename : null);
+                    putIfNonNull(values, COLUMN_MIME_TYPE,
+                            mMimeType == null ? "application/octet-stream" : null);
+                    return values;
+                }
+                if (mTitle == null) {
+                    //use filename as default title.
+                    final String filename = queryFilename(mContext, mFileUri);
+                    putIfNonNull(values, COLUMN_TITLE, filename != null ? filename : mFilename);
+                }
+                if (mMimeType == null) {
+                    putIfNonNull(values, COLUMN_MIME_TYPE, mContext.getContentResolver().getType(mFileUri));
+                }
+                return values;
+            }
+        }
     }
 
     /**
@@ -783,9 +1535,15 @@ public class UploadManager {
         public static final int ORDER_DESCENDING = 2;
 
         private long[] mIds = null;
+        private String mGroup = null;
+        private String[] mProjection = null;
         private Integer mStatusFlags = null;
         private String mOrderByColumn = COLUMN_LAST_MODIFICATION;
         private int mOrderDirection = ORDER_DESCENDING;
+        private int mLimit = 0;
+        private boolean mPageAfter = false;
+        private long mPageAfterValue;
+        private long mPageAfterId;
 
         /**
          * Include only the uploads with the given IDs.
@@ -797,6 +1555,62 @@ public class UploadManager {
             return this;
         }
 
+        /**
+         * Include only the uploads of the given group, see {@link Request#setGroup(String)}.
+         *
+         * @return this object
+         */
+        public Query setFilterByGroup(String group) {
+            mGroup = group;
+            return this;
+        }
+
+        /**
+         * Return only the given columns instead of all of them, which saves reading and copying
+         * unused data for large result sets.
+         *
+         * @param columns any of the COLUMN_* constants
+         * @return this object
+         */
+        public Query setProjection(String... columns) {
+            for (String column : columns) {
+                if (!PUBLIC_COLUMNS.containsKey(column)) {
+                    throw new IllegalArgumentException("Unknown column: " + column);
+                }
+            }
+            mProjection = columns.clone();
+            return this;
+        }
+
+        /**
+         * @return number of columns the translated cursor shows
+         */
+        int getColumnCount() {
+            return mProjection == null ? UNDERLYING_COLUMNS.length : mProjection.length;
+        }
+
+        /**
+         * @return the provider projection for the requested columns, followed by the columns the
+         * computed ones are derived from if they weren't requested themselves
+         */
+        String[] getUnderlyingProjection() {
+            if (mProjection == null) {
+                return UNDERLYING_COLUMNS;
+            }
+            final List<String> columns = new ArrayList<>(Arrays.asList(mProjection));
+            if (columns.contains(COLUMN_REASON) && !columns.contains(COLUMN_STATUS)) {
+                columns.add(COLUMN_STATUS);
+            }
+            if (columns.contains(COLUMN_LOCAL_URI) && !columns.contains(COLUMN_ID)) {
+                columns.add(COLUMN_ID);
+            }
+            final String[] projection = new String[columns.size()];
+            for (int i = 0; i < projection.length; i++) {
+                projection[i] = PUBLIC_COLUMNS.get(columns.get(i));
+            }
+            return projection;
+        }
+
         /**
          * Include only uploads with status matching any the given status flags.
          *
@@ -833,6 +1647,41 @@ public class UploadManager {
             return this;
         }
 
+        /**
+         * Return at most {@code limit} rows.
+         *
+         * @param limit maximum number of rows, 0 for no limit
+         * @return this object
+         */
+        public Query setLimit(int limit) {
+            if (limit < 0) {
+                throw new IllegalArgumentException("Invalid limit: " + limit);
+            }
+            mLimit = limit;
+            return this;
+        }
+
+        /**
+         * Return only the rows that come after the given one in the sort order, used with
+         * {@link #setLimit(int)} to page through the uploads. Unlike an offset, the next page is
+         * found through the index however deep into the table it is, and rows added or removed
+         * in the meantime don't shift it.
+         * <p>
+         * Pass the values of the last row of the previous page, ties on the sort column are
+         * ordered by ID in the same direction.
+         *
+         * @param sortValue value of the column set by {@link #orderBy} in the last row, that is
+         *                  {@link #COLUMN_LAST_MODIFIED_TIMESTAMP} unless changed
+         * @param id        {@link #COLUMN_ID} of the last row
+         * @return this object
+         */
+        public Query setPageAfter(long sortValue, long id) {
+            mPageAfter = true;
+            mPageAfterValue = sortValue;
+            mPageAfterId = id;
+            return this;
+        }
+
         /**
          * Run this query using the given ContentResolver.
          *
@@ -842,23 +1691,50 @@ public class UploadManager {
         Cursor runQuery(ContentResolver resolver, String[] projection, Uri baseUri) {
             Uri uri = baseUri;
             List<String> selectionParts = new ArrayList<String>();
-            String[] selectionArgs = null;
+            List<String> selectionArgs = new ArrayList<String>();
+            String orderDirection = (mOrderDirection == ORDER_ASCENDING ? "ASC" : "DESC");
 
             if (mIds != null) {
+                // a cursor can't span statements, so this is one IN list however long
                 selectionParts.add(getWhereClauseForIds(mIds));
-                selectionArgs = getWhereArgsForIds(mIds);
+            }
+
+            if (mGroup != null) {
+                selectionParts.add(COLUMN_GROUP + " = ?");
+                selectionArgs.add(mGroup);
+            }
+
+            if (mPageAfter) {
+                // the first term bounds the index range, a plain OR would make SQLite walk the
+                // index from its start
+                final boolean ascending = mOrderDirection == ORDER_ASCENDING;
+                final String operator = ascending ? " > ?" : " < ?";
+                selectionParts.add(mOrderByColumn + (ascending ? " >= ?" : " <= ?")
+                        + " AND (" + mOrderByColumn + operator
+                        + " OR " + UploadContract.UPLOAD_COLUMNS._ID + operator + ")");
+                selectionArgs.add(Long.toString(mPageAfterValue));
+                selectionArgs.add(Long.toString(mPageAfterValue));
+                selectionArgs.add(Long.toString(mPageAfterId));
+            }
+
+            if (mLimit > 0) {
+                uri = uri.buildUpon()
+                        .appendQueryParameter(UploadContract.UPLOAD_URIS.QUERY_PARAMETER_LIMIT,
+                                Integer.toString(mLimit))
+                        .build();
             }
 
             if (mStatusFlags != null) {
                 List<String> parts = new ArrayList<String>();
                 if ((mStatusFlags & STATUS_PENDING) != 0) {
                     parts.add(statusClause("=", UploadContract.UPLOAD_STATUS.PENDING));
+                    parts.add(statusClause("=", UploadContract.UPLOAD_STATUS.RESOLVING));
                 }
                 if ((mStatusFlags & STATUS_RUNNING) != 0) {
                     parts.add(statusClause("=", UploadContract.UPLOAD_STATUS.RUNNING));
                 }
                 if ((mStatusFlags & STATUS_PAUSED) != 0) {
-                    //parts.add(statusClause("=", UploadContract.UPLOAD_STATUS.PAUSED_BY_APP));
+                    parts.add(statusClause("=", UploadContract.UPLOAD_STATUS.PAUSED_BY_APP));
                     parts.add(statusClause("=", UploadContract.UPLOAD_STATUS.WAITING_TO_RETRY));
                     parts.add(statusClause("=", UploadContract.UPLOAD_STATUS.WAITING_FOR_NETWORK));
                     parts.add(statusClause("=", UploadContract.UPLOAD_STATUS.WAITING_FOR_WIFI));
@@ -878,10 +1754,12 @@ public class UploadManager {
             selectionParts.add(UploadContract.UPLOAD_COLUMNS.COLUMN_DELETED + " != '1'");
 
             String selection = joinStrings(" AND ", selectionParts);
-            String orderDirection = (mOrderDirection == ORDER_ASCENDING ? "ASC" : "DESC");
-            String orderBy = mOrderByColumn + " " + orderDirection;
+            // the ID breaks ties so pages neither skip nor repeat rows
+            String orderBy = mOrderByColumn + " " + orderDirection + ", "
+                    + UploadContract.UPLOAD_COLUMNS._ID + " " + orderDirection;
 
-            return resolver.query(uri, projection, selection, selectionArgs, orderBy);
+            return resolver.query(uri, projection, selection,
+                    selectionArgs.toArray(new String[selectionArgs.size()]), orderBy);
         }
 
         private String joinStrings(String joiner, Iterable<String> parts) {
@@ -911,10 +1789,54 @@ public class UploadManager {
      */
     private static class CursorTranslator extends CursorWrapper {
         private Uri mBaseUri;
+        private final int mColumnCount;
+        // looked up once, -1 if not in the cursor
+        private final int mStatusIndex;
+        private final int mReasonIndex;
+        private final int mLocalUriIndex;
+        private final int mIdIndex;
+        private String[] mColumnNames;
 
-        public CursorTranslator(Cursor cursor, Uri baseUri) {
+        /**
+         * @param columnCount number of leading columns to show, the rest are only there to
+         *                    compute others
+         */
+        public CursorTranslator(Cursor cursor, Uri baseUri, int columnCount) {
             super(cursor);
             mBaseUri = baseUri;
+            mColumnCount = columnCount;
+            mStatusIndex = cursor.getColumnIndex(COLUMN_STATUS);
+            mReasonIndex = cursor.getColumnIndex(COLUMN_REASON);
+            mLocalUriIndex = cursor.getColumnIndex(COLUMN_LOCAL_URI);
+            mIdIndex = cursor.getColumnIndex(COLUMN_ID);
+        }
+
+        @Override
+        public int getColumnCount() {
+            return mColumnCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            if (mColumnNames == null) {
+                mColumnNames = Arrays.copyOf(super.getColumnNames(), mColumnCount);
+            }
+            return mColumnNames;
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            final int index = super.getColumnIndex(columnName);
+            return index < mColumnCount ? index : -1;
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName) {
+            final int index = getColumnIndex(columnName);
+            if (index < 0) {
+                throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+            }
+            return index;
         }
 
         @Override
@@ -924,10 +1846,10 @@ public class UploadManager {
 
         @Override
         public long getLong(int columnIndex) {
-            if (getColumnName(columnIndex).equals(COLUMN_REASON)) {
-                return getReason(super.getInt(getColumnIndex(COLUMN_STATUS)));
-            } else if (getColumnName(columnIndex).equals(COLUMN_STATUS)) {
-                return translateStatus(super.getInt(getColumnIndex(COLUMN_STATUS)));
+            if (columnIndex == mReasonIndex) {
+                return getReason(super.getInt(mStatusIndex));
+            } else if (columnIndex == mStatusIndex) {
+                return translateStatus(super.getInt(mStatusIndex));
             } else {
                 return super.getLong(columnIndex);
             }
@@ -935,13 +1857,12 @@ public class UploadManager {
 
         @Override
         public String getString(int columnIndex) {
-            return (getColumnName(columnIndex).equals(COLUMN_LOCAL_URI)) ? getLocalUri() :
-                    super.getString(columnIndex);
+            return columnIndex == mLocalUriIndex ? getLocalUri() : super.getString(columnIndex);
         }
 
         private String getLocalUri() {
             // return content URI for cache upload
-            long uploadId = getLong(getColumnIndex(UploadContract.UPLOAD_COLUMNS._ID));
+            long uploadId = super.getLong(mIdIndex);
             return ContentUris.withAppendedId(mBaseUri, uploadId).toString();
         }
 
@@ -969,6 +1890,9 @@ public class UploadManager {
                 case WAITING_FOR_WIFI:
                     return PAUSED_QUEUED_FOR_WIFI;
 
+                case UploadContract.UPLOAD_STATUS.PAUSED_BY_APP:
+                    return PAUSED_BY_APP;
+
                 default:
                     return PAUSED_UNKNOWN;
             }
@@ -1010,19 +1934,20 @@ public class UploadManager {
         private int translateStatus(int status) {
             switch (status) {
                 case PENDING:
+                case UploadContract.UPLOAD_STATUS.RESOLVING:
                     return STATUS_PENDING;
 
                 case RUNNING:
                     return STATUS_RUNNING;
 
-                case STATUS_PAUSED:
+                case UploadContract.UPLOAD_STATUS.PAUSED_BY_APP:
+                case WAITING_TO_RETRY:
+                case WAITING_FOR_NETWORK:
+                case WAITING_FOR_WIFI:
                     return STATUS_PAUSED;
 
                 case SUCCESS:
                     return STATUS_SUCCESSFUL;
-                case WAITING_TO_RETRY:
-                case WAITING_FOR_NETWORK:
-                case WAITING_FOR_WIFI:
                 default:
                     assert isStatusError(status);
                     return STATUS_FAILED;
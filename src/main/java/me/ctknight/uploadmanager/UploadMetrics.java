@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import me.ctknight.uploadmanager.util.Histogram;
+import me.ctknight.uploadmanager.util.LogUtils;
+
+/**
+ * Process-wide upload histograms. Recording only bumps a bucket, listeners are called once per
+ * finished upload on the upload thread.
+ */
+final class UploadMetrics {
+
+    private static final String TAG = LogUtils.makeTag(UploadMetrics.class);
+
+    static final Histogram THROUGHPUT = new Histogram();
+    static final Histogram TIME_TO_FIRST_BYTE = new Histogram();
+    static final Histogram COMPLETION_LATENCY = new Histogram();
+    static final Histogram RETRIES = new Histogram();
+    static final Histogram DB_WRITE_LATENCY = new Histogram();
+
+    private static final CopyOnWriteArrayList<UploadMetricsListener> sListeners =
+            new CopyOnWriteArrayList<>();
+
+    private UploadMetrics() {
+    }
+
+    static void addListener(UploadMetricsListener listener) {
+        sListeners.addIfAbsent(listener);
+    }
+
+    static void removeListener(UploadMetricsListener listener) {
+        sListeners.remove(listener);
+    }
+
+    static UploadMetricsSnapshot snapshot() {
+        return new UploadMetricsSnapshot(THROUGHPUT.snapshot(), TIME_TO_FIRST_BYTE.snapshot(),
+                COMPLETION_LATENCY.snapshot(), RETRIES.snapshot(), DB_WRITE_LATENCY.snapshot());
+    }
+
+    static void reset() {
+        THROUGHPUT.reset();
+        TIME_TO_FIRST_BYTE.reset();
+        COMPLETION_LATENCY.reset();
+        RETRIES.reset();
+        DB_WRITE_LATENCY.reset();
+    }
+
+    /**
+     * Called when an upload reached a final state.
+     */
+    static void uploadFinished(long id) {
+        if (sListeners.isEmpty()) {
+            return;
+        }
+        final UploadMetricsSnapshot snapshot = snapshot();
+        for (UploadMetricsListener listener : sListeners) {
+            try {
+                listener.onUploadFinished(id, snapshot);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "uploadFinished: listener failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+/**
+ * Receives the upload histograms, register with
+ * {@link UploadManager#registerMetricsListener(UploadMetricsListener)}.
+ */
+public interface UploadMetricsListener {
+
+    /**
+     * Called on the upload's worker thread whenever an upload succeeded or failed for good.
+     * Keep it short, the next upload waits for it.
+     *
+     * @param id       the upload that finished
+     * @param snapshot all histograms, including this upload
+     */
+    void onUploadFinished(long id, UploadMetricsSnapshot snapshot);
+}
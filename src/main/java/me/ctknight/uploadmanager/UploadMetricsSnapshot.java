@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import me.ctknight.uploadmanager.util.Histogram;
+
+/**
+ * Histograms of all uploads run by this process since start or the last
+ * {@link UploadManager#resetMetrics()}.
+ */
+public final class UploadMetricsSnapshot {
+
+    private final Histogram.Snapshot mThroughput;
+    private final Histogram.Snapshot mTimeToFirstByte;
+    private final Histogram.Snapshot mCompletionLatency;
+    private final Histogram.Snapshot mRetries;
+    private final Histogram.Snapshot mDatabaseWriteLatency;
+
+    UploadMetricsSnapshot(Histogram.Snapshot throughput, Histogram.Snapshot timeToFirstByte,
+                          Histogram.Snapshot completionLatency, Histogram.Snapshot retries,
+                          Histogram.Snapshot databaseWriteLatency) {
+        mThroughput = throughput;
+        mTimeToFirstByte = timeToFirstByte;
+        mCompletionLatency = completionLatency;
+        mRetries = retries;
+        mDatabaseWriteLatency = databaseWriteLatency;
+    }
+
+    /**
+     * @return request body bytes per second of each attempt that sent its whole body
+     */
+    public Histogram.Snapshot getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * @return milliseconds from sending a request to the first response byte
+     */
+    public Histogram.Snapshot getTimeToFirstByte() {
+        return mTimeToFirstByte;
+    }
+
+    /**
+     * @return milliseconds from enqueue to success
+     */
+    public Histogram.Snapshot getCompletionLatency() {
+        return mCompletionLatency;
+    }
+
+    /**
+     * @return failed attempts of each upload that finished
+     */
+    public Histogram.Snapshot getRetries() {
+        return mRetries;
+    }
+
+    /**
+     * @return microseconds spent in each status or progress update of the uploads table
+     */
+    public Histogram.Snapshot getDatabaseWriteLatency() {
+        return mDatabaseWriteLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadMetricsSnapshot{throughput=[" + mThroughput
+                + "], ttfb=[" + mTimeToFirstByte
+                + "], completion=[" + mCompletionLatency
+                + "], retries=[" + mRetries
+                + "], dbWrite=[" + mDatabaseWriteLatency + "]}";
+    }
+}
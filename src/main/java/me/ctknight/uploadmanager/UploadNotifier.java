@@ -16,18 +16,14 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
-import android.support.v4.util.LongSparseArray;
 import android.text.TextUtils;
-import android.util.Log;
 
 import java.text.NumberFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
 
+import me.ctknight.uploadmanager.util.ClusterMap;
+import me.ctknight.uploadmanager.util.ConcurrentLongLongMap;
 import me.ctknight.uploadmanager.util.TimeUtils;
 
 public class UploadNotifier {
@@ -44,19 +40,26 @@ public class UploadNotifier {
     //AOSP use final ,but I have to get current package name in a static method,so change it to static.
     private final NotificationManager mNotifManager;
 
-    private final HashMap<String, Long> mActiveNotif = new HashMap<>();
+    private static volatile long sProgressIntervalMillis =
+            UploadContract.Constants.DEFAULT_NOTIFICATION_PROGRESS_INTERVAL;
 
-    private final LongSparseArray<Long> mUploadSpeed = new LongSparseArray<>();
+    // clusters by notification tag, reused across passes
+    private final ClusterMap<UploadInfo, Cluster> mClusters = new ClusterMap<>();
 
-    private final LongSparseArray<Long> mUploadTouch = new LongSparseArray<>();
-    //In AOSP Download Notifier,they use LongSparseLongArray,
-    //actually,LongSparseArray is a generic version of LongSparseLongArray,
-    //so LongSparseArray<Long> is totally same with LongSparseLongArray.
+    // written by the upload threads without locking, one slot per running upload
+    private final ConcurrentLongLongMap mUploadSpeed =
+            new ConcurrentLongLongMap(BandwidthEstimator.MAX_CONCURRENT * 4);
+
+    // tags of the clustered notifications, the others are cached on each UploadInfo
+    private final String mActiveTag;
+    private final String mWaitingTag;
 
 
     public UploadNotifier(Context context) {
         mContext = context;
         mNotifManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        mActiveTag = TYPE_ACTIVE + ":" + context.getPackageName();
+        mWaitingTag = TYPE_WAITING + ":" + context.getPackageName();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mNotifManager != null) {
             NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL,
@@ -74,23 +77,44 @@ public class UploadNotifier {
         }
     }
 
-    private static String buildNotificationTag(UploadInfo info) {
-        // waiting and active is clustered
+    private static int getNotificationType(UploadInfo info) {
         if (UploadContract.isWaiting(info)) {
-            return TYPE_WAITING + ":" + mContext.getPackageName();
+            return TYPE_WAITING;
         } else if (UploadContract.isOnGoing(info)) {
-            return TYPE_ACTIVE + ":" + mContext.getPackageName();
+            return TYPE_ACTIVE;
         } else if (UploadContract.isFailed(info)) {
-            return TYPE_FAILED + ":" + info.mId;
+            return TYPE_FAILED;
         } else if (UploadContract.isComplete(info)) {
-            return TYPE_COMPLETE + ":" + info.mId;
+            return TYPE_COMPLETE;
         } else {
-            return null;
+            return 0;
         }
     }
 
-    private static int getNotificationTagType(String tag) {
-        return Integer.parseInt(tag.substring(0, tag.indexOf(':')));
+    private String getNotificationTag(UploadInfo info, int type) {
+        // waiting and active is clustered
+        if (type == TYPE_WAITING) {
+            return mWaitingTag;
+        } else if (type == TYPE_ACTIVE) {
+            return mActiveTag;
+        }
+        // built once per upload and type instead of on every pass
+        if (info.mNotificationType != type) {
+            info.mNotificationTag = type + ":" + info.mId;
+            info.mNotificationType = type;
+        }
+        return info.mNotificationTag;
+    }
+
+    /**
+     * @param intervalMillis the shortest time between two updates of a notification whose only
+     *                       change is progress or remaining time
+     */
+    static void setProgressInterval(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid progress interval");
+        }
+        sProgressIntervalMillis = intervalMillis;
     }
 
     public void cancelAll() {
@@ -98,254 +122,280 @@ public class UploadNotifier {
     }
 
     public void notifyUploadSpeed(long id, long bytesPerSecond) {
-        synchronized (mUploadSpeed) {
-            if (bytesPerSecond != 0) {
-                mUploadSpeed.put(id, bytesPerSecond);
-                mUploadTouch.put(id, SystemClock.elapsedRealtime());
-            } else {
-                mUploadSpeed.delete(id);
-                mUploadTouch.delete(id);
-            }
+        if (bytesPerSecond != 0) {
+            mUploadSpeed.put(id, bytesPerSecond);
+        } else {
+            mUploadSpeed.remove(id);
         }
     }
 
     public void updateWith(Collection<UploadInfo> uploads) {
-        synchronized (mActiveNotif) {
-            updateWithLocked(uploads);
+        final boolean traced = UploadTrace.begin("UploadNotifier.updateWithLocked");
+        try {
+            synchronized (mClusters) {
+                updateWithLocked(uploads);
+            }
+        } finally {
+            UploadTrace.end(traced);
         }
     }
 
     public void updateWithLocked(Collection<UploadInfo> uploads) {
         final Resources res = mContext.getResources();
 
-        // Cluster uploads together
-        final Map<String, ArrayList<UploadInfo>> clustered = new HashMap<>();
-//        final Multimap<String, UploadInfo> clustered = ArrayListMultimap.create();
+        // Cluster uploads together, keeping the clusters of the last pass
+        mClusters.beginPass();
         for (UploadInfo info : uploads) {
-            final String tag = buildNotificationTag(info);
-            if (tag != null) {
-                if (clustered.containsKey(tag)) {
-                    clustered.get(tag).add(info);
-                } else {
-                    //NOTE I know this is dirty, but I just don't want to get guava involved.
-                    clustered.put(tag, new ArrayList<>(Arrays.asList(info)));
+            final int type = getNotificationType(info);
+            if (type != 0) {
+                final String tag = getNotificationTag(info, type);
+                Cluster cluster = mClusters.get(tag);
+                if (cluster == null) {
+                    // Use time when cluster was first shown to avoid shuffling
+                    cluster = new Cluster(tag, type, System.currentTimeMillis());
+                    mClusters.add(cluster);
                 }
+                cluster.mItems.add(info);
             }
         }
 
-        //Build notification for each cluster
-        for (String tag : clustered.keySet()) {
-            final int type = getNotificationTagType(tag);
-            final Collection<UploadInfo> cluster = clustered.get(tag);
-
-            final NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext, NOTIFICATION_CHANNEL);
-            builder.setColor(res.getColor(R.color.system_notification_accent_color));
-
-            // Use time when cluster was first shown to avoid shuffling
-            final long firstShown;
-            if (mActiveNotif.containsKey(tag)) {
-                firstShown = mActiveNotif.get(tag);
+        final long now = SystemClock.elapsedRealtime();
+        for (int i = mClusters.size() - 1; i >= 0; i--) {
+            final Cluster cluster = mClusters.valueAt(i);
+            if (cluster.mItems.isEmpty()) {
+                mNotifManager.cancel(cluster.mTag, 0);
+                mClusters.removeAt(i);
             } else {
-                firstShown = System.currentTimeMillis();
-                mActiveNotif.put(tag, firstShown);
+                postIfChanged(res, cluster, now);
             }
-            builder.setWhen(firstShown);
+        }
+    }
 
-            // Show relevant icon
-            if (type == TYPE_ACTIVE) {
-                builder.setSmallIcon(android.R.drawable.stat_sys_upload);
-            } else if (type == TYPE_WAITING) {
-                builder.setSmallIcon(android.R.drawable.stat_sys_warning);
-            } else if (type == TYPE_COMPLETE) {
-                builder.setSmallIcon(android.R.drawable.stat_sys_upload_done);
-            } else if (type == TYPE_FAILED) {
-                builder.setSmallIcon(android.R.drawable.stat_sys_warning);
+    /**
+     * Post the notification of {@code state} unless it would look the same as the posted one.
+     * Changes to progress or remaining time alone are posted at most once per
+     * {@link #sProgressIntervalMillis}.
+     */
+    private void postIfChanged(Resources res, Cluster state, long now) {
+        final String tag = state.mTag;
+        final int type = state.mType;
+        final ArrayList<UploadInfo> cluster = state.mItems;
+
+        long current = 0;
+        long total = 0;
+        long speed = 0;
+        if (type == TYPE_ACTIVE) {
+            for (int i = 0; i < cluster.size(); i++) {
+                final UploadInfo info = cluster.get(i);
+                if (info.mTotalBytes != -1) {
+                    current += info.mCurrentBytes;
+                    total += info.mTotalBytes;
+                    speed += mUploadSpeed.get(info.mId);
+                }
             }
+        }
 
-            // Build action intents
-            // add action by type
-            // active -> cancel
-            // fail waiting -> retry
-            if (type == TYPE_ACTIVE || type == TYPE_WAITING) {
-                final Uri uri = new Uri.Builder().scheme("active-dl").appendPath(tag).build();
-                final Intent intent = new Intent(UploadContract.ACTION_LIST,
-                        uri, mContext, UploadReceiver.class);
-                intent.putExtra(UploadManager.EXTRA_NOTIFICATION_CLICK_UPLOAD_IDS,
-                        getUploadIds(cluster));
-                builder.setContentIntent(PendingIntent.getBroadcast(mContext,
-                        9, intent, PendingIntent.FLAG_UPDATE_CURRENT));
-                builder.setOngoing(true);
-
-                final UploadInfo info = cluster.iterator().next();
-                if (type == TYPE_ACTIVE) {
-                    final Uri idUri = ContentUris.withAppendedId(UploadContract.UPLOAD_URIS.CONTENT_URI, info.mId);
-                    final Intent actionIntent = new Intent(UploadContract.ACTION_CANCEL,
-                            idUri, mContext, UploadReceiver.class);
-                    builder.addAction(R.drawable.ic_clear_black_24dp,
-                            mContext.getString(R.string.notification_action_cancel),
-                            PendingIntent.getBroadcast(mContext, 0, actionIntent, 0));
-                } else {
-                    // WAITING
-                    final Uri idUri = ContentUris.withAppendedId(UploadContract.UPLOAD_URIS.CONTENT_URI, info.mId);
-                    final Intent actionIntent = new Intent(UploadContract.ACTION_MANUAL_REDO,
-                            idUri, mContext, UploadReceiver.class);
-                    builder.addAction(R.drawable.ic_redo_black_24dp,
-                            mContext.getString(R.string.notification_action_redo),
-                            PendingIntent.getBroadcast(mContext, 0, actionIntent, 0));
-                }
+        // what the user sees, apart from progress
+        long contentHash = cluster.size();
+        for (int i = 0; i < cluster.size(); i++) {
+            final UploadInfo info = cluster.get(i);
+            contentHash = 31 * contentHash + info.mId;
+            contentHash = 31 * contentHash + info.mStatus;
+            contentHash = 31 * contentHash + (info.mTitle == null ? 0 : info.mTitle.hashCode());
+            contentHash = 31 * contentHash + (info.mDescription == null ? 0 : info.mDescription.hashCode());
+        }
+        final int percent = total > 0 ? (int) ((current * 100) / total) : -1;
+        final long remainingMillis = total > 0 && speed > 0 ? ((total - current) * 1000) / speed : -1;
+        final long remainingKey = remainingMillis < 0 ? -1 : TimeUtils.durationKey(remainingMillis);
 
-            } else if (type == TYPE_COMPLETE) {
-                final UploadInfo info = cluster.iterator().next();
-                final Uri uri = ContentUris.withAppendedId(UploadContract.UPLOAD_URIS.CONTENT_URI, info.mId);
-                builder.setAutoCancel(true);
-                //In AOSP, action is set according to its status
-                //but we just need to open the upload list.
-
-                final String action;
-                if (UploadContract.isStatusError(info.mStatus)) {
-                    action = UploadContract.ACTION_LIST;
-                } else {
-                    action = UploadContract.ACTION_OPEN;
-                }
-                final Intent intent = new Intent(action, uri, mContext, UploadReceiver.class);
-                intent.putExtra(UploadManager.EXTRA_NOTIFICATION_CLICK_UPLOAD_IDS,
-                        getUploadIds(cluster));
-                builder.setContentIntent(PendingIntent.getBroadcast(mContext,
-                        0, intent, PendingIntent.FLAG_UPDATE_CURRENT));
+        if (state.mPosted && state.mContentHash == contentHash) {
+            if (state.mPercent == percent && state.mRemainingKey == remainingKey) {
+                return;
+            }
+            if (now - state.mPostedAt < sProgressIntervalMillis) {
+                return;
+            }
+        }
+        state.mPosted = true;
+        state.mPostedAt = now;
+        state.mContentHash = contentHash;
+        state.mPercent = percent;
+        state.mRemainingKey = remainingKey;
+
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext, NOTIFICATION_CHANNEL);
+        builder.setColor(res.getColor(R.color.system_notification_accent_color));
+
+        builder.setWhen(state.mFirstShown);
+
+        // Show relevant icon
+        if (type == TYPE_ACTIVE) {
+            builder.setSmallIcon(android.R.drawable.stat_sys_upload);
+        } else if (type == TYPE_WAITING) {
+            builder.setSmallIcon(android.R.drawable.stat_sys_warning);
+        } else if (type == TYPE_COMPLETE) {
+            builder.setSmallIcon(android.R.drawable.stat_sys_upload_done);
+        } else if (type == TYPE_FAILED) {
+            builder.setSmallIcon(android.R.drawable.stat_sys_warning);
+        }
 
-                final Intent hideIntent = new Intent(UploadContract.ACTION_HIDE,
-                        uri, mContext, UploadReceiver.class);
-                builder.setDeleteIntent(PendingIntent.getBroadcast(mContext, 0, hideIntent, 0));
+        // Build action intents
+        // add action by type
+        // active -> cancel
+        // fail waiting -> retry
+        if (type == TYPE_ACTIVE || type == TYPE_WAITING) {
+            final Uri uri = new Uri.Builder().scheme("active-dl").appendPath(tag).build();
+            final Intent intent = new Intent(UploadContract.ACTION_LIST,
+                    uri, mContext, UploadReceiver.class);
+            intent.putExtra(UploadManager.EXTRA_NOTIFICATION_CLICK_UPLOAD_IDS,
+                    getUploadIds(cluster));
+            builder.setContentIntent(PendingIntent.getBroadcast(mContext,
+                    9, intent, PendingIntent.FLAG_UPDATE_CURRENT));
+            builder.setOngoing(true);
+
+            final UploadInfo info = cluster.iterator().next();
+            if (type == TYPE_ACTIVE) {
+                final Uri idUri = ContentUris.withAppendedId(UploadContract.UPLOAD_URIS.CONTENT_URI, info.mId);
+                final Intent actionIntent = new Intent(UploadContract.ACTION_CANCEL,
+                        idUri, mContext, UploadReceiver.class);
+                builder.addAction(R.drawable.ic_clear_black_24dp,
+                        mContext.getString(R.string.notification_action_cancel),
+                        PendingIntent.getBroadcast(mContext, 0, actionIntent, 0));
+            } else {
+                // WAITING
+                final Uri idUri = ContentUris.withAppendedId(UploadContract.UPLOAD_URIS.CONTENT_URI, info.mId);
+                final Intent actionIntent = new Intent(UploadContract.ACTION_MANUAL_REDO,
+                        idUri, mContext, UploadReceiver.class);
+                builder.addAction(R.drawable.ic_redo_black_24dp,
+                        mContext.getString(R.string.notification_action_redo),
+                        PendingIntent.getBroadcast(mContext, 0, actionIntent, 0));
+            }
 
-            } else if (type == TYPE_FAILED) {
-                final UploadInfo info = cluster.iterator().next();
-                final Uri uri = ContentUris.withAppendedId(UploadContract.UPLOAD_URIS.CONTENT_URI, info.mId);
-                builder.setAutoCancel(true);
+        } else if (type == TYPE_COMPLETE) {
+            final UploadInfo info = cluster.iterator().next();
+            final Uri uri = ContentUris.withAppendedId(UploadContract.UPLOAD_URIS.CONTENT_URI, info.mId);
+            builder.setAutoCancel(true);
+            //In AOSP, action is set according to its status
+            //but we just need to open the upload list.
 
-                final String action = UploadContract.ACTION_LIST;
+            final String action;
+            if (UploadContract.isStatusError(info.mStatus)) {
+                action = UploadContract.ACTION_LIST;
+            } else {
+                action = UploadContract.ACTION_OPEN;
+            }
+            final Intent intent = new Intent(action, uri, mContext, UploadReceiver.class);
+            intent.putExtra(UploadManager.EXTRA_NOTIFICATION_CLICK_UPLOAD_IDS,
+                    getUploadIds(cluster));
+            builder.setContentIntent(PendingIntent.getBroadcast(mContext,
+                    0, intent, PendingIntent.FLAG_UPDATE_CURRENT));
+
+            final Intent hideIntent = new Intent(UploadContract.ACTION_HIDE,
+                    uri, mContext, UploadReceiver.class);
+            builder.setDeleteIntent(PendingIntent.getBroadcast(mContext, 0, hideIntent, 0));
+
+        } else if (type == TYPE_FAILED) {
+            final UploadInfo info = cluster.iterator().next();
+            final Uri uri = ContentUris.withAppendedId(UploadContract.UPLOAD_URIS.CONTENT_URI, info.mId);
+            builder.setAutoCancel(true);
+
+            final String action = UploadContract.ACTION_LIST;
+
+            final Intent intent = new Intent(action, uri, mContext, UploadReceiver.class);
+            intent.putExtra(UploadManager.EXTRA_NOTIFICATION_CLICK_UPLOAD_IDS,
+                    getUploadIds(cluster));
+            builder.setContentIntent(PendingIntent.getBroadcast(mContext,
+                    0, intent, PendingIntent.FLAG_UPDATE_CURRENT));
+
+            final Intent hideIntent = new Intent(UploadContract.ACTION_HIDE,
+                    uri, mContext, UploadReceiver.class);
+            builder.setDeleteIntent(PendingIntent.getBroadcast(mContext, 0, hideIntent, 0));
+        }
 
-                final Intent intent = new Intent(action, uri, mContext, UploadReceiver.class);
-                intent.putExtra(UploadManager.EXTRA_NOTIFICATION_CLICK_UPLOAD_IDS,
-                        getUploadIds(cluster));
-                builder.setContentIntent(PendingIntent.getBroadcast(mContext,
-                        0, intent, PendingIntent.FLAG_UPDATE_CURRENT));
+        //Calculate and show progress
+        String remainingText = null;
+        String percentText = null;
+        if (type == TYPE_ACTIVE) {
+            if (total > 0) {
+                percentText =
+                        NumberFormat.getPercentInstance().format((double) current / total);
+
+                if (speed > 0) {
+                    remainingText = res.getString(R.string.upload_remaining,
+                            TimeUtils.formatDuration(remainingMillis, res));
+                }
 
-                final Intent hideIntent = new Intent(UploadContract.ACTION_HIDE,
-                        uri, mContext, UploadReceiver.class);
-                builder.setDeleteIntent(PendingIntent.getBroadcast(mContext, 0, hideIntent, 0));
+                builder.setProgress(100, percent, false);
+            } else {
+                builder.setProgress(100, 0, true);
             }
+        }
+
+        final Notification notification;
+        if (cluster.size() == 1) {
+            final UploadInfo info = cluster.iterator().next();
+
+            builder.setContentTitle(getUploadTitle(res, info));
 
-            //Calculate and show progress
-            String remainingText = null;
-            String percentText = null;
             if (type == TYPE_ACTIVE) {
-                long current = 0;
-                long total = 0;
-                long speed = 0;
-                synchronized (mUploadSpeed) {
-                    for (UploadInfo info : cluster) {
-                        if (info.mTotalBytes != -1) {
-                            current += info.mCurrentBytes;
-                            total += info.mTotalBytes;
-                            speed += mUploadSpeed.get(info.mId) == null ? 0 : mUploadSpeed.get(info.mId);
-                        }
-                    }
+                if (!TextUtils.isEmpty(info.mDescription)) {
+                    builder.setContentText(info.mDescription);
+                } else {
+                    builder.setContentText(remainingText);
                 }
+                builder.setContentInfo(percentText);
 
-                if (total > 0) {
-                    percentText =
-                            NumberFormat.getPercentInstance().format((double) current / total);
+            } else if (type == TYPE_WAITING) {
+                //For both continuable transfer and network check before transfer,
+                //but Box doesn't support previous one.
+                builder.setContentText(res.getText(
+                        R.string.notification_waiting_for_suitable_network));
 
-                    if (speed > 0) {
-                        final long remainingMillis = ((total - current) * 1000) / speed;
-                        remainingText = res.getString(R.string.upload_remaining,
-                                TimeUtils.formatDuration(remainingMillis, res));
-                    }
+            } else if (type == TYPE_COMPLETE) {
+                builder.setContentText(res.getString(R.string.notification_upload_successfully));
 
-                    final int percent = (int) ((current * 100) / total);
-                    builder.setProgress(100, percent, false);
+            } else if (type == TYPE_FAILED) {
+                // TODO: 2016/2/28 TEMP FIX
+                if (info.mStatus == UploadContract.UPLOAD_STATUS.FILE_NOT_FOUND) {
+                    builder.setContentText(res.getString(R.string.notification_upload_file_not_found));
                 } else {
-                    builder.setProgress(100, 0, true);
+                    builder.setContentText(res.getString(R.string.notification_upload_unsuccessfully));
                 }
             }
 
-            final Notification notification;
-            if (cluster.size() == 1) {
-                final UploadInfo info = cluster.iterator().next();
-
-                builder.setContentTitle(getUploadTitle(res, info));
-
-                if (type == TYPE_ACTIVE) {
-                    if (!TextUtils.isEmpty(info.mDescription)) {
-                        builder.setContentText(info.mDescription);
-                    } else {
-                        builder.setContentText(remainingText);
-                    }
-                    builder.setContentInfo(percentText);
-
-                } else if (type == TYPE_WAITING) {
-                    //For both continuable transfer and network check before transfer,
-                    //but Box doesn't support previous one.
-                    builder.setContentText(res.getText(
-                            R.string.notification_waiting_for_suitable_network));
-
-                } else if (type == TYPE_COMPLETE) {
-                    builder.setContentText(res.getString(R.string.notification_upload_successfully));
-
-                } else if (type == TYPE_FAILED) {
-                    // TODO: 2016/2/28 TEMP FIX
-                    if (info.mStatus == UploadContract.UPLOAD_STATUS.FILE_NOT_FOUND) {
-                        builder.setContentText(res.getString(R.string.notification_upload_file_not_found));
-                    } else {
-                        builder.setContentText(res.getString(R.string.notification_upload_unsuccessfully));
-                    }
-                }
-
-                notification = builder.build();
+            notification = builder.build();
 
-            } else {
-                // handle more than one items
+        } else {
+            // handle more than one items
 
-                final NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle(builder);
+            final NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle(builder);
 
-                for (UploadInfo info : cluster) {
-                    inboxStyle.addLine(getUploadTitle(res, info));
-                }
+            for (UploadInfo info : cluster) {
+                inboxStyle.addLine(getUploadTitle(res, info));
+            }
 
-                if (type == TYPE_ACTIVE) {
-                    builder.setContentTitle(res.getQuantityString(
-                            R.plurals.notif_summary_active, cluster.size(), cluster.size()));
-                    builder.setContentText(remainingText);
-                    builder.setContentInfo(percentText);
-                    inboxStyle.setSummaryText(remainingText);
-
-                } else if (type == TYPE_WAITING) {
-                    builder.setContentTitle(
-                            res.getQuantityString(R.plurals.notif_summary_waiting, cluster.size(), cluster.size()));
-                    builder.setContentText(
-                            res.getString(R.string.notification_waiting_for_suitable_network));
-                    inboxStyle.setSummaryText(
-                            res.getString(R.string.notification_waiting_for_suitable_network));
-
-                } else if (type == TYPE_FAILED) {
-                    builder.setContentText(res.getQuantityString(R.plurals.notif_summary_failed, cluster.size(), cluster.size()));
-                }
+            if (type == TYPE_ACTIVE) {
+                builder.setContentTitle(res.getQuantityString(
+                        R.plurals.notif_summary_active, cluster.size(), cluster.size()));
+                builder.setContentText(remainingText);
+                builder.setContentInfo(percentText);
+                inboxStyle.setSummaryText(remainingText);
 
-                notification = inboxStyle.build();
+            } else if (type == TYPE_WAITING) {
+                builder.setContentTitle(
+                        res.getQuantityString(R.plurals.notif_summary_waiting, cluster.size(), cluster.size()));
+                builder.setContentText(
+                        res.getString(R.string.notification_waiting_for_suitable_network));
+                inboxStyle.setSummaryText(
+                        res.getString(R.string.notification_waiting_for_suitable_network));
 
+            } else if (type == TYPE_FAILED) {
+                builder.setContentText(res.getQuantityString(R.plurals.notif_summary_failed, cluster.size(), cluster.size()));
             }
-            mNotifManager.notify(tag, 0, notification);
 
-        }
+            notification = inboxStyle.build();
 
-        final Iterator<String> it = mActiveNotif.keySet().iterator();
-        while (it.hasNext()) {
-            final String tag = it.next();
-            if (!clustered.containsKey(tag)) {
-                mNotifManager.cancel(tag, 0);
-                it.remove();
-            }
         }
+        mNotifManager.notify(tag, 0, notification);
     }
 
     private long[] getUploadIds(Collection<UploadInfo> infos) {
@@ -357,15 +407,30 @@ public class UploadNotifier {
         return ids;
     }
 
-    public void dumpSpeeds() {
-        synchronized (mUploadSpeed) {
-            for (int i = 0; i < mUploadSpeed.size(); i++) {
-                final long id = mUploadSpeed.keyAt(i);
-                final long delta = SystemClock.elapsedRealtime() - mUploadTouch.get(id);
-                Log.d("UploadManager", "Upload " + id + " speed " + mUploadSpeed.valueAt(i) + "bps, "
-                        + delta + "ms ago");
+    /**
+     * @return last speed reported by {@link #notifyUploadSpeed(long, long)}, or 0
+     */
+    public long getUploadSpeed(long id) {
+        return mUploadSpeed.get(id);
+    }
 
-            }
+    /**
+     * Uploads sharing one notification, and what was last posted for them.
+     */
+    private static final class Cluster extends ClusterMap.Cluster<UploadInfo> {
+        final int mType;
+        final long mFirstShown;
+        boolean mPosted;
+        long mPostedAt;
+        long mContentHash;
+        int mPercent;
+        long mRemainingKey;
+
+        Cluster(String tag, int type, long firstShown) {
+            super(tag);
+            mType = type;
+            mFirstShown = firstShown;
         }
     }
+
 }
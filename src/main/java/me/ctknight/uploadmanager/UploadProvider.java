@@ -5,11 +5,14 @@
 package me.ctknight.uploadmanager;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.ApplicationInfo;
 import android.database.Cursor;
@@ -29,10 +32,14 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import me.ctknight.uploadmanager.util.IoUtils;
 import me.ctknight.uploadmanager.util.LogUtils;
 
 public final class UploadProvider extends ContentProvider {
@@ -45,7 +52,7 @@ public final class UploadProvider extends ContentProvider {
     /**
      * Current database version
      */
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 9;
     /**
      * Name of table in the database
      */
@@ -68,6 +75,9 @@ public final class UploadProvider extends ContentProvider {
     private static final int ALL_UPLOADS = 2;
     private static final int REQUEST_HEADERS_URI = 3;
     private static final int REQUEST_CD_URI = 4;
+    private static final int RESPONSE_URI = 5;
+    private static final int METRICS_URI = 6;
+    private static final int ALL_GROUPS = 7;
 
     /**
      * URI matcher used to recognize URIs sent by applications
@@ -91,6 +101,13 @@ public final class UploadProvider extends ContentProvider {
         matcher.addURI(authority,
                 PATH_UPLOAD + "/#/" + UploadContract.RequestContent.CD_URI_SEGMENT,
                 REQUEST_CD_URI);
+        matcher.addURI(authority,
+                PATH_UPLOAD + "/#/" + UploadContract.UPLOAD_URIS.RESPONSE_SEGMENT,
+                RESPONSE_URI);
+        matcher.addURI(authority,
+                PATH_UPLOAD + "/#/" + UploadContract.UPLOAD_METRICS.URI_SEGMENT,
+                METRICS_URI);
+        matcher.addURI(authority, UploadContract.UPLOAD_GROUPS.TABLE_NAME, ALL_GROUPS);
 
         return matcher;
     }
@@ -139,6 +156,11 @@ public final class UploadProvider extends ContentProvider {
 
                 count = db.delete(DB_TABLE, sqlSelection.getSelection(), sqlSelection.getParameters());
                 break;
+            case ALL_GROUPS:
+                SqlSelection groupSelection = getWhereClause(uri, selection, selectionArgs, match);
+                count = db.delete(UploadContract.UPLOAD_GROUPS.TABLE_NAME,
+                        groupSelection.getSelection(), groupSelection.getParameters());
+                break;
             default:
                 Log.d(TAG, " calling delete() on an unknown/invalid URI:" + uri);
         }
@@ -166,6 +188,8 @@ public final class UploadProvider extends ContentProvider {
                     return mimeType;
                 }
             }
+            case RESPONSE_URI:
+                return "application/octet-stream";
             default: {
                 Log.v(TAG, "call getType() on an unknown URI " + uri);
                 throw new IllegalArgumentException("Unknown URI: " + uri);
@@ -182,6 +206,12 @@ public final class UploadProvider extends ContentProvider {
         final ApplicationInfo appInfo = context.getApplicationInfo();
 
         int match = sURIMatcher.match(uri);
+        if (match == METRICS_URI) {
+            return insertMetrics(db, uri, values);
+        }
+        if (match == ALL_GROUPS) {
+            return insertGroup(db, uri, values, appInfo.uid);
+        }
         if (match != SINGLE_UPLOAD && match != ALL_UPLOADS) {
             Log.d(TAG, " calling insert() on an unknown URI " + uri);
             throw new IllegalArgumentException();
@@ -203,8 +233,29 @@ public final class UploadProvider extends ContentProvider {
 
         copyInteger(UploadContract.UPLOAD_COLUMNS.COLUMN_VISIBILITY, values, filteredValues);
         copyBoolean(UploadContract.UPLOAD_COLUMNS.COLUMN_ALLOW_ROAMING, values, filteredValues);
+        copyBoolean(UploadContract.UPLOAD_COLUMNS.COLUMN_DEFERRABLE, values, filteredValues);
+        copyString(UploadContract.UPLOAD_COLUMNS.COLUMN_GROUP, values, filteredValues);
+        copyInteger(UploadContract.UPLOAD_COLUMNS.COLUMN_PRIORITY, values, filteredValues);
+        copyBoolean(UploadContract.UPLOAD_COLUMNS.COLUMN_RESUMABLE, values, filteredValues);
+        copyString(UploadContract.UPLOAD_COLUMNS.COLUMN_RAW_METHOD, values, filteredValues);
+        final long now = System.currentTimeMillis();
+        filteredValues.put(UploadContract.UPLOAD_COLUMNS.COLUMN_ENQUEUE_TIME, now);
+        // never null, so keyset pagination over lastmod sees every row
+        filteredValues.put(UploadContract.UPLOAD_COLUMNS.COLUMN_LAST_MODIFICATION, now);
+        // the only status a client may insert with, the row isn't ready to run yet
+        final Integer status = values.getAsInteger(UploadContract.UPLOAD_COLUMNS.COLUMN_STATUS);
+        final boolean isResolving = status != null && status == UploadContract.UPLOAD_STATUS.RESOLVING;
+        if (isResolving) {
+            filteredValues.put(UploadContract.UPLOAD_COLUMNS.COLUMN_STATUS, status);
+        }
         //filter columns to process safe insert.
 
+        final String group = filteredValues.getAsString(UploadContract.UPLOAD_COLUMNS.COLUMN_GROUP);
+        if (group != null) {
+            // the triggers only count into an existing group row
+            ensureGroup(db, appInfo.uid, group);
+        }
+
         long rowID = db.insert(DB_TABLE, null, filteredValues);
         if (rowID == -1) {
             Log.d(TAG, " couldn't insert into uploads database");
@@ -215,8 +266,10 @@ public final class UploadProvider extends ContentProvider {
         insertRequestBody(db, rowID, values);
         notifyContentChanged(uri, match, rowID);
 
-
-        context.startService(new Intent(context, UploadService.class));
+        // a resolving row is started by the update that makes it pending
+        if (!isResolving) {
+            context.startService(new Intent(context, UploadService.class));
+        }
 
         return ContentUris.withAppendedId(UploadContract.UPLOAD_URIS.CONTENT_URI, rowID);
     }
@@ -275,10 +328,34 @@ public final class UploadProvider extends ContentProvider {
             return queryRequestBody(db, uri);
         }
 
+        if (match == RESPONSE_URI) {
+            throw new UnsupportedOperationException("Responses can only be read through openFile()");
+        }
+
+        if (match == METRICS_URI) {
+            return queryMetrics(db, uri, projection, sortOrder);
+        }
+
+        if (match == ALL_GROUPS) {
+            SqlSelection groupSelection = getWhereClause(uri, selection, selectionArgs, match);
+            Cursor groups = db.query(UploadContract.UPLOAD_GROUPS.TABLE_NAME, projection,
+                    groupSelection.getSelection(), groupSelection.getParameters(), null, null,
+                    sortOrder);
+            // the totals change with the uploads, so watch those
+            groups.setNotificationUri(getContext().getContentResolver(),
+                    UploadContract.UPLOAD_URIS.CONTENT_URI);
+            return groups;
+        }
+
+        final String limit = uri.getQueryParameter(UploadContract.UPLOAD_URIS.QUERY_PARAMETER_LIMIT);
+        if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+            throw new IllegalArgumentException("Invalid limit: " + limit);
+        }
+
         SqlSelection fullSelection = getWhereClause(uri, selection, selectionArgs, match);
 //        logVerboseQueryInfo(projection, selection, selectionArgs, sortOrder, db);
         Cursor ret = db.query(DB_TABLE, projection, fullSelection.getSelection(),
-                fullSelection.getParameters(), null, null, sortOrder);
+                fullSelection.getParameters(), null, null, sortOrder, limit);
 
         if (ret != null) {
             ContentResolver resolver = getContext().getContentResolver();
@@ -315,6 +392,12 @@ public final class UploadProvider extends ContentProvider {
             startService = true;
         }
 
+        // resumed or reprioritized uploads need a pass of the service, which may be stopped
+        if (values.containsKey(UploadContract.UPLOAD_COLUMNS.COLUMN_CONTROL)
+                || values.containsKey(UploadContract.UPLOAD_COLUMNS.COLUMN_PRIORITY)) {
+            startService = true;
+        }
+
         int match = sURIMatcher.match(uri);
         switch (match) {
             case SINGLE_UPLOAD:
@@ -328,6 +411,20 @@ public final class UploadProvider extends ContentProvider {
                 }
                 break;
 
+            case ALL_GROUPS:
+                // the totals belong to the triggers, only the flags may be changed
+                ContentValues groupValues = new ContentValues();
+                copyBoolean(UploadContract.UPLOAD_GROUPS.COLUMN_ALL_OR_NOTHING, values, groupValues);
+                copyBoolean(UploadContract.UPLOAD_GROUPS.COLUMN_COMPLETED, values, groupValues);
+                SqlSelection groupSelection = getWhereClause(uri, selection, selectionArgs, match);
+                if (groupValues.size() > 0) {
+                    count = db.update(UploadContract.UPLOAD_GROUPS.TABLE_NAME, groupValues,
+                            groupSelection.getSelection(), groupSelection.getParameters());
+                } else {
+                    count = 0;
+                }
+                break;
+
             default:
                 Log.d(TAG, "calling unknown/invalid URI: " + uri);
                 throw new UnsupportedOperationException("Can't update invalid URI: " + uri);
@@ -341,6 +438,25 @@ public final class UploadProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Apply the operations in one transaction, so a bulk update split into several statements
+     * is written, and seen by the service, all at once.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     private void logVerboseQueryInfo(String[] projection, final String selection,
                                      final String[] selectionArgs, final String sort, SQLiteDatabase db) {
         StringBuilder sb = new StringBuilder();
@@ -399,6 +515,9 @@ public final class UploadProvider extends ContentProvider {
         if (uriMatch == ALL_UPLOADS) {
             sqlSelection.appendClause(UploadContract.UPLOAD_COLUMNS.COLUMN_UID + " = ?", Binder.getCallingUid());
         }
+        if (uriMatch == ALL_GROUPS) {
+            sqlSelection.appendClause(UploadContract.UPLOAD_GROUPS.COLUMN_UID + " = ?", Binder.getCallingUid());
+        }
 
         return sqlSelection;
     }
@@ -421,6 +540,11 @@ public final class UploadProvider extends ContentProvider {
     public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
         int match = sURIMatcher.match(uri);
         switch (match) {
+            case RESPONSE_URI:
+                if (!"r".equals(mode)) {
+                    throw new FileNotFoundException("Server responses are read-only: " + uri);
+                }
+                return openResponse(uri.getPathSegments().get(1));
             case SINGLE_UPLOAD: {
                 Cursor cursor = query(uri, new String[]{UploadContract.UPLOAD_COLUMNS.COLUMN_FILE_URI},
                         UploadContract.UPLOAD_COLUMNS._ID + " = ?",
@@ -436,6 +560,62 @@ public final class UploadProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Large responses are handed out as the file they were captured to, small ones are streamed
+     * through a pipe so callers never need to know where a response lives.
+     */
+    private ParcelFileDescriptor openResponse(String id) throws FileNotFoundException {
+        final SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+        final String response;
+        final String responseFile;
+        final Cursor cursor = db.query(DB_TABLE, new String[]{
+                        UploadContract.UPLOAD_COLUMNS.COLUMN_SERVER_RESPONSE,
+                        UploadContract.UPLOAD_COLUMNS.COLUMN_SERVER_RESPONSE_FILE},
+                UploadContract.UPLOAD_COLUMNS._ID + " = ? AND "
+                        + UploadContract.UPLOAD_COLUMNS.COLUMN_UID + " = ?",
+                new String[]{id, Integer.toString(Binder.getCallingUid())}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                throw new FileNotFoundException("No upload " + id);
+            }
+            response = cursor.getString(0);
+            responseFile = cursor.getString(1);
+        } finally {
+            cursor.close();
+        }
+
+        if (responseFile != null) {
+            // the column only says that there is a file, callers may have written any path into it
+            return ParcelFileDescriptor.open(ResponseCapture.getResponseFile(getContext(),
+                    Long.parseLong(id)), ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+        if (response == null) {
+            throw new FileNotFoundException("No response recorded for upload " + id);
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                try {
+                    out.write(response.getBytes(Charset.forName("UTF-8")));
+                } catch (IOException e) {
+                    // reader went away
+                    Log.w(TAG, "openResponse: ", e);
+                } finally {
+                    IoUtils.close(out);
+                }
+            }
+        });
+        return pipe[0];
+    }
+
     private void notifyContentChanged(final Uri uri, int uriMatch, long id) {
 
         if (uriMatch == SINGLE_UPLOAD || uriMatch == ALL_UPLOADS) {
@@ -455,6 +635,64 @@ public final class UploadProvider extends ContentProvider {
                 null, null, null, null);
     }
 
+    private Cursor queryMetrics(SQLiteDatabase db, Uri uri, String[] projection, String sortOrder) {
+        final String uploadId = uri.getPathSegments().get(1);
+        // only the app that enqueued the upload may see its metrics
+        final String where = UploadContract.UPLOAD_METRICS.COLUMN_UPLOAD_ID + "=? AND EXISTS (SELECT 1 FROM "
+                + DB_TABLE + " WHERE " + UploadContract.UPLOAD_COLUMNS._ID + "=? AND "
+                + UploadContract.UPLOAD_COLUMNS.COLUMN_UID + "=?)";
+        return db.query(UploadContract.UPLOAD_METRICS.TABLE_NAME, projection, where,
+                new String[]{uploadId, uploadId, Integer.toString(Binder.getCallingUid())},
+                null, null, sortOrder);
+    }
+
+    private void ensureGroup(SQLiteDatabase db, int uid, String name) {
+        final ContentValues row = new ContentValues();
+        row.put(UploadContract.UPLOAD_GROUPS.COLUMN_UID, uid);
+        row.put(UploadContract.UPLOAD_GROUPS.COLUMN_NAME, name);
+        db.insertWithOnConflict(UploadContract.UPLOAD_GROUPS.TABLE_NAME, null, row,
+                SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Create a group if it doesn't exist yet and set its policy, its totals are kept.
+     */
+    private Uri insertGroup(SQLiteDatabase db, Uri uri, ContentValues values, int uid) {
+        final String name = values.getAsString(UploadContract.UPLOAD_GROUPS.COLUMN_NAME);
+        if (name == null) {
+            throw new IllegalArgumentException("A group needs a name");
+        }
+        final ContentValues policy = new ContentValues();
+        copyBoolean(UploadContract.UPLOAD_GROUPS.COLUMN_ALL_OR_NOTHING, values, policy);
+        db.beginTransaction();
+        try {
+            ensureGroup(db, uid, name);
+            if (policy.size() > 0) {
+                db.update(UploadContract.UPLOAD_GROUPS.TABLE_NAME, policy,
+                        UploadContract.UPLOAD_GROUPS.COLUMN_UID + " = ? AND "
+                                + UploadContract.UPLOAD_GROUPS.COLUMN_NAME + " = ?",
+                        new String[]{Integer.toString(uid), name});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyContentChanged(uri, ALL_GROUPS);
+        return uri;
+    }
+
+    private Uri insertMetrics(SQLiteDatabase db, Uri uri, ContentValues values) {
+        final long uploadId = Long.parseLong(uri.getPathSegments().get(1));
+        final ContentValues rowValues = new ContentValues(values);
+        rowValues.put(UploadContract.UPLOAD_METRICS.COLUMN_UPLOAD_ID, uploadId);
+        final long rowId = db.insert(UploadContract.UPLOAD_METRICS.TABLE_NAME, null, rowValues);
+        if (rowId == -1) {
+            Log.d(TAG, " couldn't insert metrics of " + uploadId);
+            return null;
+        }
+        return ContentUris.withAppendedId(uri, rowId);
+    }
+
     private void insertRequestHeaders(SQLiteDatabase db, long downloadId, ContentValues values) {
         ContentValues rowValues = new ContentValues();
         rowValues.put(UploadContract.RequestContent.COLUMN_UPLOAD_ID, downloadId);
@@ -473,13 +711,20 @@ public final class UploadProvider extends ContentProvider {
     }
 
     private void deleteRequestContent(SQLiteDatabase db, String where, String[] whereArgs) {
-        String[] projection = new String[]{UploadContract.UPLOAD_COLUMNS._ID};
+        String[] projection = new String[]{UploadContract.UPLOAD_COLUMNS._ID,
+                UploadContract.UPLOAD_COLUMNS.COLUMN_SERVER_RESPONSE_FILE};
         Cursor cursor = db.query(DB_TABLE, projection, where, whereArgs, null, null, null, null);
         try {
             for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
                 long id = cursor.getLong(0);
                 String idWhere = UploadContract.RequestContent.COLUMN_UPLOAD_ID + "=" + id;
                 db.delete(UploadContract.RequestContent.REQUEST_CONTENT_DB_TABLE, idWhere, null);
+                db.delete(UploadContract.UPLOAD_METRICS.TABLE_NAME,
+                        UploadContract.UPLOAD_METRICS.COLUMN_UPLOAD_ID + "=" + id, null);
+                if (!cursor.isNull(1)
+                        && !ResponseCapture.getResponseFile(getContext(), id).delete()) {
+                    Log.w(TAG, "deleteRequestContent: couldn't delete response of " + id);
+                }
             }
         } finally {
             cursor.close();
@@ -556,48 +801,110 @@ public final class UploadProvider extends ContentProvider {
         public void onCreate(final SQLiteDatabase db) {
             createRequestContentTable(db);
             createUploadTable(db);
+            createUploadIndexes(db);
+            createMetricsTable(db);
+            createGroupTable(db);
         }
 
         private void createUploadTable(SQLiteDatabase db) {
 
             try {
                 db.execSQL("DROP TABLE IF EXISTS " + DB_TABLE);
-                db.execSQL
-                        ("CREATE TABLE " + DB_TABLE + "(" +
-                                UploadContract.UPLOAD_COLUMNS._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_TARGET_URL + " TEXT, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_FILE_URI + " TEXT, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_UID + " INTEGER, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_STATUS + " INTEGER DEFAULT 0 , " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_NUM_FAILED + " INTEGER, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_RETRY_AFTER + " INTEGER, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_MIME_TYPE + " TEXT, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_LAST_MODIFICATION + " BIGINT, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_TITLE + " TEXT, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_DESCRIPTION + " TEXT, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_TOTAL_BYTES + " INTEGER, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_CURRENT_BYTES + " INTEGER, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_DELETED + " INTEGER DEFAULT 0 , " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_NOTIFICATION_PACKAGE + " TEXT, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_NOTIFICATION_CLASS + " TEXT, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_NOTIFICATION_EXTRAS + " TEXT, " +
-                                UploadContract.UPLOAD_COLUMNS.RETRY_AFTER_X_REDIRECT_COUNT + " INTEGER, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_CONTROL + " INTEGER, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_BYPASS_NETWORK_CHANGE + " BOOLEAN, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_VISIBILITY + " INTEGER, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_ERROR_MSG + " TEXT, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_ALLOW_ROAMING + " INTEGER, " +
-                                UploadContract.UPLOAD_COLUMNS.COLUMN_SERVER_RESPONSE + " TEXT, " +
-                                UploadContract.UPLOAD_COLUMNS.COLOMN_DATA_FIELD_NAME + " TEXT, " +
-                                UploadContract.RequestContent.COLUMN_USER_AGENT + " TEXT, " +
-                                UploadContract.RequestContent.COLUMN_REFERER + " TEXT" + ");"
-                        );
+                db.execSQL(UploadSchema.CREATE_UPLOADS_TABLE);
             } catch (SQLException e) {
                 Log.e("SQLException", "Couldn't create upload_table in upload database ");
             }
 
         }
 
+        private void createUploadIndexes(SQLiteDatabase db) {
+            try {
+                createLastModIndex(db);
+                createGroupIndex(db);
+            } catch (SQLException e) {
+                Log.e("SQLException", "Couldn't create indexes in upload database ");
+            }
+        }
+
+        private void createLastModIndex(SQLiteDatabase db) {
+            db.execSQL(UploadSchema.CREATE_LASTMOD_INDEX);
+        }
+
+        private void createGroupIndex(SQLiteDatabase db) {
+            db.execSQL(UploadSchema.CREATE_GROUP_INDEX);
+        }
+
+        private void createGroupTable(SQLiteDatabase db) {
+            try {
+                db.execSQL("DROP TABLE IF EXISTS " + UploadContract.UPLOAD_GROUPS.TABLE_NAME);
+                db.execSQL(UploadSchema.CREATE_GROUPS_TABLE);
+                db.execSQL(UploadSchema.CREATE_GROUP_INSERT_TRIGGER);
+                db.execSQL(UploadSchema.CREATE_GROUP_UPDATE_TRIGGER);
+                db.execSQL(UploadSchema.CREATE_GROUP_DELETE_TRIGGER);
+            } catch (SQLException e) {
+                Log.e("SQLException", "Couldn't create group table in upload database ");
+            }
+        }
+
+        /**
+         * Count the uploads that got a group before the group table existed, from then on the
+         * triggers keep it up to date.
+         */
+        private void fillGroupTable(SQLiteDatabase db) {
+            final String status = UploadContract.UPLOAD_COLUMNS.COLUMN_STATUS;
+            db.execSQL("INSERT INTO " + UploadContract.UPLOAD_GROUPS.TABLE_NAME + "("
+                    + UploadContract.UPLOAD_GROUPS.COLUMN_UID + ", "
+                    + UploadContract.UPLOAD_GROUPS.COLUMN_NAME + ", "
+                    + UploadContract.UPLOAD_GROUPS.COLUMN_NUM_UPLOADS + ", "
+                    + UploadContract.UPLOAD_GROUPS.COLUMN_NUM_SUCCEEDED + ", "
+                    + UploadContract.UPLOAD_GROUPS.COLUMN_NUM_FAILED + ", "
+                    + UploadContract.UPLOAD_GROUPS.COLUMN_TOTAL_BYTES + ", "
+                    + UploadContract.UPLOAD_GROUPS.COLUMN_CURRENT_BYTES + ") SELECT "
+                    + UploadContract.UPLOAD_COLUMNS.COLUMN_UID + ", "
+                    + UploadContract.UPLOAD_COLUMNS.COLUMN_GROUP + ", COUNT(*), "
+                    + "SUM(" + status + " = " + UploadContract.UPLOAD_STATUS.SUCCESS + "), "
+                    + "SUM(" + status + " >= 400 AND " + status + " < 600), "
+                    + "SUM(MAX(IFNULL(" + UploadContract.UPLOAD_COLUMNS.COLUMN_TOTAL_BYTES + ", 0), 0)), "
+                    + "SUM(IFNULL(" + UploadContract.UPLOAD_COLUMNS.COLUMN_CURRENT_BYTES + ", 0)) FROM "
+                    + DB_TABLE + " WHERE " + UploadContract.UPLOAD_COLUMNS.COLUMN_GROUP + " IS NOT NULL"
+                    + " GROUP BY " + UploadContract.UPLOAD_COLUMNS.COLUMN_UID + ", "
+                    + UploadContract.UPLOAD_COLUMNS.COLUMN_GROUP);
+            // groups that were already done don't get a late broadcast
+            db.execSQL("UPDATE " + UploadContract.UPLOAD_GROUPS.TABLE_NAME + " SET "
+                    + UploadContract.UPLOAD_GROUPS.COLUMN_COMPLETED + " = 1 WHERE "
+                    + UploadContract.UPLOAD_GROUPS.COLUMN_NUM_SUCCEEDED + " + "
+                    + UploadContract.UPLOAD_GROUPS.COLUMN_NUM_FAILED + " = "
+                    + UploadContract.UPLOAD_GROUPS.COLUMN_NUM_UPLOADS);
+        }
+
+        private void createMetricsTable(SQLiteDatabase db) {
+            try {
+                db.execSQL("DROP TABLE IF EXISTS " + UploadContract.UPLOAD_METRICS.TABLE_NAME);
+                db.execSQL("CREATE TABLE " + UploadContract.UPLOAD_METRICS.TABLE_NAME + "(" +
+                        UploadContract.UPLOAD_METRICS._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_UPLOAD_ID + " INTEGER NOT NULL," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_ATTEMPT + " INTEGER," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_START_TIME + " BIGINT," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_QUEUE_WAIT + " BIGINT," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_DNS + " BIGINT," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_CONNECT + " BIGINT," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_TLS + " BIGINT," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_REQUEST_WRITE + " BIGINT," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_SERVER_WAIT + " BIGINT," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_RESPONSE_READ + " BIGINT," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_TOTAL + " BIGINT," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_BYTES + " BIGINT," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_HTTP_CODE + " INTEGER," +
+                        UploadContract.UPLOAD_METRICS.COLUMN_ERROR + " TEXT" +
+                        ");");
+                db.execSQL("CREATE INDEX " + UploadContract.UPLOAD_METRICS.TABLE_NAME + "_uploadid ON "
+                        + UploadContract.UPLOAD_METRICS.TABLE_NAME + "("
+                        + UploadContract.UPLOAD_METRICS.COLUMN_UPLOAD_ID + ");");
+            } catch (SQLException e) {
+                Log.e("SQLException", "Couldn't create metrics table in upload database ");
+            }
+        }
+
         private void createRequestContentTable(SQLiteDatabase db) {
             try {
                 db.execSQL("DROP TABLE IF EXISTS " + UploadContract.RequestContent.REQUEST_CONTENT_DB_TABLE);
@@ -616,7 +923,53 @@ public final class UploadProvider extends ContentProvider {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            for (int version = oldVersion + 1; version <= newVersion; version++) {
+                upgradeTo(db, version);
+            }
+        }
 
+        private void upgradeTo(SQLiteDatabase db, int version) {
+            switch (version) {
+                case 2:
+                    addColumn(db, DB_TABLE, UploadContract.UPLOAD_COLUMNS.COLUMN_SERVER_RESPONSE_FILE,
+                            "TEXT");
+                    break;
+                case 3:
+                    addColumn(db, DB_TABLE, UploadContract.UPLOAD_COLUMNS.COLUMN_DEFERRABLE,
+                            "INTEGER DEFAULT 0");
+                    addColumn(db, DB_TABLE, UploadContract.UPLOAD_COLUMNS.COLUMN_ENQUEUE_TIME,
+                            "BIGINT");
+                    break;
+                case 4:
+                    createMetricsTable(db);
+                    break;
+                case 5:
+                    db.execSQL("UPDATE " + DB_TABLE + " SET "
+                            + UploadContract.UPLOAD_COLUMNS.COLUMN_LAST_MODIFICATION + " = COALESCE("
+                            + UploadContract.UPLOAD_COLUMNS.COLUMN_ENQUEUE_TIME + ", 0) WHERE "
+                            + UploadContract.UPLOAD_COLUMNS.COLUMN_LAST_MODIFICATION + " IS NULL");
+                    createLastModIndex(db);
+                    break;
+                case 6:
+                    addColumn(db, DB_TABLE, UploadContract.UPLOAD_COLUMNS.COLUMN_GROUP, "TEXT");
+                    addColumn(db, DB_TABLE, UploadContract.UPLOAD_COLUMNS.COLUMN_PRIORITY,
+                            "INTEGER DEFAULT 0");
+                    createGroupIndex(db);
+                    break;
+                case 7:
+                    createGroupTable(db);
+                    fillGroupTable(db);
+                    break;
+                case 8:
+                    addColumn(db, DB_TABLE, UploadContract.UPLOAD_COLUMNS.COLUMN_RESUMABLE,
+                            "INTEGER DEFAULT 0");
+                    break;
+                case 9:
+                    addColumn(db, DB_TABLE, UploadContract.UPLOAD_COLUMNS.COLUMN_RAW_METHOD, "TEXT");
+                    break;
+                default:
+                    throw new IllegalStateException("Don't know how to upgrade to " + version);
+            }
         }
 
         /**
@@ -51,7 +51,8 @@ public class UploadReceiver extends BroadcastReceiver {
             if (info != null && info.isConnected()) {
                 startService();
             }
-        } else if (UploadContract.ACTION_RETRY.equals(action)) {
+        } else if (UploadContract.ACTION_RETRY.equals(action)
+                || UploadContract.ACTION_NETWORK_AVAILABLE.equals(action)) {
             startService();
         } else if (UploadContract.ACTION_LIST.equals(action)
                 || UploadContract.ACTION_HIDE.equals(action)
@@ -114,7 +115,9 @@ public class UploadReceiver extends BroadcastReceiver {
         final int visibility;
 
         final Uri uri = ContentUris.withAppendedId(UploadContract.UPLOAD_URIS.CONTENT_URI, id);
-        final Cursor cursor = context.getContentResolver().query(uri, null, null, null, null);
+        final Cursor cursor = context.getContentResolver().query(uri, new String[]{
+                UploadContract.UPLOAD_COLUMNS.COLUMN_STATUS,
+                UploadContract.UPLOAD_COLUMNS.COLUMN_VISIBILITY}, null, null, null);
         if (cursor == null) {
             return;
         }
@@ -156,7 +159,9 @@ public class UploadReceiver extends BroadcastReceiver {
 
         final Uri uri = ContentUris.withAppendedId(
                 UploadContract.UPLOAD_URIS.CONTENT_URI, ids[0]);
-        final Cursor cursor = context.getContentResolver().query(uri, null, null, null, null);
+        final Cursor cursor = context.getContentResolver().query(uri, new String[]{
+                UploadContract.UPLOAD_COLUMNS.COLUMN_NOTIFICATION_PACKAGE,
+                UploadContract.UPLOAD_COLUMNS.COLUMN_NOTIFICATION_CLASS}, null, null, null);
 
         if (cursor == null) {
             return;
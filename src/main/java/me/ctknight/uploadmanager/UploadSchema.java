@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+/**
+ * SQL creating the uploads table, its indexes and the group table with its triggers, run by
+ * UploadProvider's DatabaseHelper. Free of Android classes, so the table benchmark creates the
+ * same schema; the names are written out because UploadContract can't be loaded there and have
+ * to match its columns.
+ */
+public final class UploadSchema {
+
+    public static final String CREATE_UPLOADS_TABLE = "CREATE TABLE uploads("
+            + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + "url TEXT, "
+            + "uri TEXT, "
+            + "uid INTEGER, "
+            + "status INTEGER DEFAULT 0 , "
+            + "numfailed INTEGER, "
+            + "retryafter INTEGER, "
+            + "mimetype TEXT, "
+            + "lastmod BIGINT, "
+            + "title TEXT, "
+            + "description TEXT, "
+            + "totalbytes INTEGER, "
+            + "currentbytes INTEGER, "
+            + "deleted INTEGER DEFAULT 0 , "
+            + "notificationpackage TEXT, "
+            + "notificationclass TEXT, "
+            + "notificationextras TEXT, "
+            + "method INTEGER, "
+            + "control INTEGER, "
+            + "bypassnetworkchange BOOLEAN, "
+            + "visibility INTEGER, "
+            + "errormsg TEXT, "
+            + "allowroaming INTEGER, "
+            + "response TEXT, "
+            + "responsefile TEXT, "
+            + "datafiled TEXT, "
+            + "isdeferrable INTEGER DEFAULT 0, "
+            + "enqueuetime BIGINT, "
+            + "uploadgroup TEXT, "
+            + "priority INTEGER DEFAULT 0, "
+            + "resumable INTEGER DEFAULT 0, "
+            + "rawmethod TEXT, "
+            + "useragent TEXT, "
+            + "referer TEXT);";
+
+    /**
+     * Index matching the default order of UploadManager.Query, so a page of history is read
+     * without sorting the whole table.
+     */
+    public static final String CREATE_LASTMOD_INDEX =
+            "CREATE INDEX IF NOT EXISTS uploads_lastmod ON uploads(lastmod, _id);";
+
+    /**
+     * Index for the group operations of UploadManager.
+     */
+    public static final String CREATE_GROUP_INDEX =
+            "CREATE INDEX IF NOT EXISTS uploads_group ON uploads(uploadgroup);";
+
+    /**
+     * Groups of uploads with their totals. The triggers below add each upload to the totals of
+     * its group when it is inserted, move it when its bytes or status change and take it out
+     * when it is deleted, so reading a group never sums over its uploads.
+     */
+    public static final String CREATE_GROUPS_TABLE = "CREATE TABLE uploadgroups("
+            + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + "name TEXT NOT NULL,"
+            + "uid INTEGER NOT NULL,"
+            + "numuploads INTEGER DEFAULT 0,"
+            + "numsucceeded INTEGER DEFAULT 0,"
+            + "numfailed INTEGER DEFAULT 0,"
+            + "totalbytes INTEGER DEFAULT 0,"
+            + "currentbytes INTEGER DEFAULT 0,"
+            + "allornothing INTEGER DEFAULT 0,"
+            + "completed INTEGER DEFAULT 0,"
+            + "UNIQUE(uid, name));";
+
+    public static final String CREATE_GROUP_INSERT_TRIGGER = "CREATE TRIGGER uploads_group_insert"
+            + " AFTER INSERT ON uploads WHEN NEW.uploadgroup IS NOT NULL"
+            + " BEGIN " + updateGroupTotals("NEW", "+") + reopenGroup() + " END;";
+
+    public static final String CREATE_GROUP_UPDATE_TRIGGER = "CREATE TRIGGER uploads_group_update"
+            + " AFTER UPDATE OF currentbytes, totalbytes, status, uploadgroup ON uploads"
+            + " WHEN OLD.uploadgroup IS NOT NULL OR NEW.uploadgroup IS NOT NULL"
+            + " BEGIN " + updateGroupTotals("OLD", "-") + updateGroupTotals("NEW", "+")
+            + reopenGroup() + " END;";
+
+    public static final String CREATE_GROUP_DELETE_TRIGGER = "CREATE TRIGGER uploads_group_delete"
+            + " AFTER DELETE ON uploads WHEN OLD.uploadgroup IS NOT NULL"
+            + " BEGIN " + updateGroupTotals("OLD", "-") + " END;";
+
+    private UploadSchema() {
+    }
+
+    /**
+     * @param row  NEW or OLD
+     * @param sign + to add the upload to the totals of its group, - to take it out
+     */
+    private static String updateGroupTotals(String row, String sign) {
+        final String status = row + ".status";
+        return "UPDATE uploadgroups SET "
+                + "numuploads = numuploads" + sign + " 1, "
+                // UploadContract.UPLOAD_STATUS.SUCCESS and the error range
+                + "numsucceeded = numsucceeded" + sign + " (" + status + " = 200), "
+                + "numfailed = numfailed" + sign + " (" + status + " >= 400 AND " + status + " < 600), "
+                + "totalbytes = totalbytes" + sign + " MAX(IFNULL(" + row + ".totalbytes, 0), 0), "
+                + "currentbytes = currentbytes" + sign + " IFNULL(" + row + ".currentbytes, 0)"
+                + groupOf(row) + ";";
+    }
+
+    /**
+     * Clear the completed flag once an upload of the group isn't finished, like a restart.
+     */
+    private static String reopenGroup() {
+        return "UPDATE uploadgroups SET completed = 0" + groupOf("NEW")
+                + " AND completed != 0 AND NEW.status < 200;";
+    }
+
+    private static String groupOf(String row) {
+        return " WHERE uid = " + row + ".uid AND name = " + row + ".uploadgroup";
+    }
+}
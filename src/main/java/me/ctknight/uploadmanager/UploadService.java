@@ -8,10 +8,12 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
@@ -19,20 +21,23 @@ import android.os.Message;
 import android.os.Process;
 import android.util.Log;
 
-import java.util.Arrays;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import me.ctknight.uploadmanager.util.LogUtils;
+import me.ctknight.uploadmanager.util.PriorityExecutor;
 
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
 
@@ -41,15 +46,40 @@ public class UploadService extends Service {
     private static final int MSG_UPDATE = 1;
     private static final int MSG_FINAL_UPDATE = 2;
     private static final String TAG = LogUtils.makeTag(UploadService.class);
+    // update passes slower than this are logged, they scale with the number of rows
+    private static final long SLOW_UPDATE_MILLIS = 100;
+    private static final String[] GROUP_PROJECTION = {
+            UploadContract.UPLOAD_GROUPS._ID,
+            UploadContract.UPLOAD_GROUPS.COLUMN_NAME,
+            UploadContract.UPLOAD_GROUPS.COLUMN_NUM_UPLOADS,
+            UploadContract.UPLOAD_GROUPS.COLUMN_NUM_SUCCEEDED,
+            UploadContract.UPLOAD_GROUPS.COLUMN_NUM_FAILED
+    };
+    // the running instance, for state snapshots
+    private static volatile UploadService sInstance;
     // don't use LongSparseArray, it can't get keys' collection
     private final Map<Long, UploadInfo> mUploads = new HashMap<>();
     private AlarmManager mAlarmManager;
     private UploadManagerContentObserver mObserver;
     private UploadNotifier mNotifier;
-    private ExecutorService mExecutor = buildUploadExecutor();
+    private UploadLocks mLocks;
+    private NetworkMonitor mNetworkMonitor;
+    private final BurstScheduler mBurstScheduler = new BurstScheduler();
+    // what the uploads left behind are waiting for, used to ask for a wake-up when we stop
+    private volatile boolean mWaitingForNetwork;
+    private volatile boolean mWaitingForUnmetered;
+    private PriorityExecutor mExecutor = buildUploadExecutor();
+    // writes in-memory upload data to disk, off the update thread and the mUploads lock
+    private final ExecutorService mSpillExecutor = Executors.newSingleThreadExecutor();
     private HandlerThread mUpdateThread;
     private Handler mUpdateHandler;
     private volatile int mLastStartId;
+    // update pass statistics, written by the update thread
+    private volatile long mUpdateCount;
+    private volatile long mMaxUpdateMillis;
+    private volatile int mLastUpdateRows;
+    // whether the RESOLVING rows of dead processes were demoted, done once per service
+    private boolean mRecoveredResolving;
 
     private Handler.Callback mUpdateCallback = new Handler.Callback() {
         @Override
@@ -64,24 +94,22 @@ public class UploadService extends Service {
             // once the real actions have finished and persisted their state.
 
             final boolean isActive;
-            synchronized (mUploads) {
-                isActive = updateLocked();
+            final List<Uri> toSpill = new ArrayList<>();
+            final long start = System.nanoTime();
+            final boolean traced = UploadTrace.begin("UploadService.updateLocked");
+            try {
+                synchronized (mUploads) {
+                    isActive = updateLocked(toSpill);
+                }
+            } finally {
+                UploadTrace.end(traced);
             }
+            recordUpdatePass(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            spill(toSpill);
 
             if (msg.what == MSG_FINAL_UPDATE) {
-                // Dump thread stacks belonging to pool
-                for (Map.Entry<Thread, StackTraceElement[]> entry :
-                        Thread.getAllStackTraces().entrySet()) {
-                    if (entry.getKey().getName().startsWith("pool")) {
-                        Log.d(TAG, entry.getKey() + ": " + Arrays.toString(entry.getValue()));
-                    }
-                }
-
-                // Dump speed and update details
-                mNotifier.dumpSpeeds();
-
                 Log.wtf(TAG, "Final update pass triggered, isActive=" + isActive
-                        + "; someone didn't update correctly.");
+                        + "; someone didn't update correctly. " + getStateSnapshot());
             }
 
             if (isActive) {
@@ -108,13 +136,11 @@ public class UploadService extends Service {
         }
     };
 
-    private static ExecutorService buildUploadExecutor() {
+    private static PriorityExecutor buildUploadExecutor() {
         // it's the up limit set by cluster notification
-        final int maxConcurrent = 5;
+        final int maxConcurrent = BandwidthEstimator.MAX_CONCURRENT;
 
-        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
-                maxConcurrent, maxConcurrent, 10, TimeUnit.SECONDS,
-                new LinkedBlockingDeque<Runnable>()) {
+        return new PriorityExecutor(maxConcurrent) {
             @Override
             protected void afterExecute(Runnable r, Throwable t) {
                 super.afterExecute(r, t);
@@ -136,9 +162,6 @@ public class UploadService extends Service {
                 }
             }
         };
-        executor.allowCoreThreadTimeOut(true);
-        return executor;
-
     }
 
     /**
@@ -163,9 +186,20 @@ public class UploadService extends Service {
         mNotifier = new UploadNotifier(this);
         mNotifier.cancelAll();
 
+        mLocks = new UploadLocks(this);
+
+        mNetworkMonitor = new NetworkMonitor(this, new Runnable() {
+            @Override
+            public void run() {
+                enqueueUpdate();
+            }
+        });
+        mNetworkMonitor.start();
+
         mObserver = new UploadManagerContentObserver();
         getContentResolver().registerContentObserver(UploadContract.UPLOAD_URIS.CONTENT_URI,
                 true, mObserver);
+        sInstance = this;
     }
 
     @Override
@@ -180,12 +214,59 @@ public class UploadService extends Service {
 
     @Override
     public void onDestroy() {
+        sInstance = null;
         getContentResolver().unregisterContentObserver(mObserver);
         mUpdateThread.quit();
+        mLocks.releaseAll();
+        mNetworkMonitor.stop(mWaitingForNetwork, mWaitingForUnmetered);
+        // spills already queued still finish
+        mSpillExecutor.shutdown();
 //        Log.v("UploadService", "Service onDestroy");
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // the process may be killed soon, keep in-memory upload data from dying with it
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            mSpillExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    UploadSources.spillAll(UploadService.this);
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        getStateSnapshot().dump(writer);
+    }
+
+    /**
+     * @return the state of the running service, see {@link UploadManager#getStateSnapshot()}
+     */
+    static UploadStateSnapshot getStateSnapshot() {
+        final UploadService service = sInstance;
+        return service == null ? UploadStateSnapshot.notRunning() : service.snapshot();
+    }
+
+    private UploadStateSnapshot snapshot() {
+        final List<UploadStateSnapshot.UploadState> uploads;
+        // waits for an update pass in progress, but only copies fields
+        synchronized (mUploads) {
+            uploads = new ArrayList<>(mUploads.size());
+            for (UploadInfo info : mUploads.values()) {
+                uploads.add(info.toState(mNotifier.getUploadSpeed(info.mId)));
+            }
+        }
+        return new UploadStateSnapshot(System.currentTimeMillis(), true,
+                mExecutor.getActiveCount(), mExecutor.getQueue().size(),
+                mUpdateCount, mMaxUpdateMillis, mLastUpdateRows,
+                mWaitingForNetwork, mWaitingForUnmetered, uploads);
+    }
+
     public void enqueueUpdate() {
         if (mUpdateHandler != null) {
             mUpdateHandler.removeMessages(MSG_UPDATE);
@@ -194,7 +275,7 @@ public class UploadService extends Service {
     }
 
     /**
-     * Enqueue an {@link #updateLocked()} pass to occur after delay, usually to
+     * Enqueue an {@link #updateLocked(List)} pass to occur after delay, usually to
      * catch any finished operations that didn't trigger an update pass.
      */
     private void enqueueFinalUpdate() {
@@ -205,21 +286,69 @@ public class UploadService extends Service {
     }
 
 
-    private boolean updateLocked() {
+    private void recordUpdatePass(long durationMillis) {
+        mUpdateCount++;
+        mMaxUpdateMillis = Math.max(mMaxUpdateMillis, durationMillis);
+        if (durationMillis >= SLOW_UPDATE_MILLIS) {
+            Log.d(TAG, "updateLocked: slow pass, " + durationMillis + "ms for " + mLastUpdateRows
+                    + " rows, " + mUploads.size() + " tracked, max " + mMaxUpdateMillis
+                    + "ms over " + mUpdateCount + " passes");
+        }
+    }
+
+    /**
+     * Write the data of uploads that wait to disk in the background.
+     */
+    private void spill(final List<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        mSpillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Uri uri : uris) {
+                    UploadSources.spill(UploadService.this, uri);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param toSpill gets the file URIs of uploads whose in-memory data should go to disk
+     */
+    private boolean updateLocked(List<Uri> toSpill) {
         final long now = System.currentTimeMillis();
 
         boolean isActive = false;
+        boolean waitingForAnyNetwork = false;
+        boolean waitingForUnmetered = false;
         long nextActionMillis = Long.MAX_VALUE;
 
         final Set<Long> staleIds = new HashSet<>(mUploads.keySet());
+        final List<UploadInfo> heldUploads = new ArrayList<>();
+        boolean radioActive = false;
+
+        // fewer uploads at once on slow links, so the first ones finish sooner
+        final int concurrency = BandwidthEstimator.getConcurrency();
+        if (mExecutor.getCorePoolSize() != concurrency) {
+            Log.v(TAG, "updateLocked: running " + concurrency + " uploads at once");
+            mExecutor.setCorePoolSize(concurrency);
+        }
 
         final ContentResolver resolver = getContentResolver();
+        if (!mRecoveredResolving) {
+            recoverResolvingLocked(resolver);
+            mRecoveredResolving = true;
+        }
+        // uploads are submitted in this order, the executor keeps it for the ones that queue
         final Cursor cursor = resolver.query(UploadContract.UPLOAD_URIS.CONTENT_URI,
-                null, UploadContract.UPLOAD_COLUMNS.COLUMN_VISIBILITY + " != " + UploadContract.VISIBILITY_STATUS.HIDDEN_COMPLETE,
-                null, null);
+                UploadInfo.PROJECTION, UploadContract.UPLOAD_COLUMNS.COLUMN_VISIBILITY + " != " + UploadContract.VISIBILITY_STATUS.HIDDEN_COMPLETE,
+                null, UploadContract.UPLOAD_COLUMNS.COLUMN_PRIORITY + " DESC, "
+                        + UploadContract.UPLOAD_COLUMNS._ID + " ASC");
         if (cursor == null) {
             return false;
         }
+        mLastUpdateRows = cursor.getCount();
         try {
             UploadInfo.Reader reader = new UploadInfo.Reader(this, cursor);
             final int idColumn = cursor.getColumnIndexOrThrow(UploadContract.UPLOAD_COLUMNS._ID);
@@ -231,23 +360,56 @@ public class UploadService extends Service {
 
                 if (info != null) {
                     updateUpload(reader, info);
+                    info.requeueIfReprioritized(mExecutor);
                 } else {
                     info = insertUploadLocked(reader);
                 }
+                if (info.mControl == UploadContract.CONTROL.PAUSED || info.mDeleted) {
+                    info.stopTask();
+                }
 
+                info.mHeld = false;
                 if (info.mDeleted) {
                     // Delete download if requested, but only after cleaning up
                     resolver.delete(info.getUploadsUri(), null, null);
+                    UploadSources.release(this, Uri.parse(info.mFileUri));
+                } else if (info.mDeferrable && info.mStatus == UploadContract.UPLOAD_STATUS.PENDING
+                        && info.isReadyToStart()) {
+                    // first attempt is held until its burst is due, retries go out on their own;
+                    // its data was spilled when it was enqueued
+                    info.mHeld = true;
+                    heldUploads.add(info);
                 } else {
                     final boolean activeUpload = info.startUploadIfReady(mExecutor);
                     isActive |= activeUpload;
+                    radioActive |= activeUpload;
+                    if (!activeUpload) {
+                        // waits, maybe across process restarts, so its data goes to disk; not
+                        // while it's enqueued or about to start, that would only delay it
+                        final Uri fileUri = Uri.parse(info.mFileUri);
+                        if (info.mStatus != UploadContract.UPLOAD_STATUS.RESOLVING
+                                && info.mStatus != UploadContract.UPLOAD_STATUS.PENDING
+                                && UploadSources.isSource(fileUri)) {
+                            toSpill.add(fileUri);
+                        }
+                        waitingForAnyNetwork |= info.mStatus == UploadContract.UPLOAD_STATUS.WAITING_FOR_NETWORK;
+                        waitingForUnmetered |= info.mStatus == UploadContract.UPLOAD_STATUS.WAITING_FOR_WIFI;
+                    }
+                }
+
+                if (info.mStatus != info.mReportedStatus) {
+                    info.mReportedStatus = info.mStatus;
+                    UploadEvents.stateChanged(id, info.mStatus);
                 }
 
                 if (info.mVisibility == UploadContract.VISIBILITY_STATUS.HIDDEN_COMPLETE) {
                     mUploads.remove(id);
                 }
 
-                nextActionMillis = Math.min(info.nextActionMillis(now), nextActionMillis);
+                final long infoNextAction = info.nextActionMillis(now);
+                info.mNextActionTime = infoNextAction == Long.MAX_VALUE
+                        ? Long.MAX_VALUE : now + infoNextAction;
+                nextActionMillis = Math.min(infoNextAction, nextActionMillis);
             }
         } finally {
             cursor.close();
@@ -257,6 +419,20 @@ public class UploadService extends Service {
             deleteUploadLocked(id);
         }
 
+        updateGroupsLocked(resolver);
+
+        final long burstDelay = mBurstScheduler.dispatchIfDue(heldUploads,
+                radioActive || mNetworkMonitor.isDefaultNetworkActive(), now, mExecutor);
+        if (burstDelay == 0) {
+            isActive = true;
+        } else {
+            nextActionMillis = Math.min(burstDelay, nextActionMillis);
+        }
+
+        mWaitingForNetwork = waitingForAnyNetwork || waitingForUnmetered;
+        // only ask for an unmetered network when nothing would take a metered one
+        mWaitingForUnmetered = waitingForUnmetered && !waitingForAnyNetwork;
+
         mNotifier.updateWith(mUploads.values());
 
         if (nextActionMillis > 0 && nextActionMillis < Long.MAX_VALUE) {
@@ -272,13 +448,85 @@ public class UploadService extends Service {
         return isActive;
     }
 
+    /**
+     * Make uploads left RESOLVING by a process that died before enqueueAsync() resolved them
+     * PENDING, no resolver is left to do it and they would never start. Their title stays
+     * unset, the MIME type falls back when they start.
+     */
+    private void recoverResolvingLocked(ContentResolver resolver) {
+        final ContentValues values = new ContentValues();
+        values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_STATUS, UploadContract.UPLOAD_STATUS.PENDING);
+        final int recovered = resolver.update(UploadContract.UPLOAD_URIS.CONTENT_URI, values,
+                UploadContract.UPLOAD_COLUMNS.COLUMN_STATUS + " = ? AND "
+                        + UploadContract.UPLOAD_COLUMNS.COLUMN_ENQUEUE_TIME + " < ?",
+                new String[]{Integer.toString(UploadContract.UPLOAD_STATUS.RESOLVING),
+                        Long.toString(UploadManager.sLoadTime)});
+        if (recovered > 0) {
+            Log.w(TAG, "recoverResolvingLocked: " + recovered + " uploads were never resolved");
+        }
+    }
+
+    /**
+     * Broadcast the groups whose uploads all finished, and cancel the rest of all-or-nothing
+     * groups with a failed upload. Only reads the totals the database keeps per group.
+     */
+    private void updateGroupsLocked(ContentResolver resolver) {
+        final String finished = "(" + UploadContract.UPLOAD_GROUPS.COLUMN_NUM_SUCCEEDED + " + "
+                + UploadContract.UPLOAD_GROUPS.COLUMN_NUM_FAILED + ")";
+        final Cursor cursor = resolver.query(UploadContract.UPLOAD_GROUPS.CONTENT_URI,
+                GROUP_PROJECTION, UploadContract.UPLOAD_GROUPS.COLUMN_COMPLETED + " = 0 AND "
+                        + UploadContract.UPLOAD_GROUPS.COLUMN_NUM_UPLOADS + " > 0 AND ("
+                        + finished + " = " + UploadContract.UPLOAD_GROUPS.COLUMN_NUM_UPLOADS
+                        + " OR (" + UploadContract.UPLOAD_GROUPS.COLUMN_ALL_OR_NOTHING + " != 0 AND "
+                        + UploadContract.UPLOAD_GROUPS.COLUMN_NUM_FAILED + " > 0))",
+                null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final long groupId = cursor.getLong(0);
+                final String name = cursor.getString(1);
+                final int uploads = cursor.getInt(2);
+                final int succeeded = cursor.getInt(3);
+                final int failed = cursor.getInt(4);
+
+                if (succeeded + failed < uploads) {
+                    // all-or-nothing: the group completes once the cancelled uploads are gone
+                    Log.v(TAG, "updateGroupsLocked: cancelling the rest of group " + name);
+                    final ContentValues values = new ContentValues();
+                    values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_DELETED, 1);
+                    resolver.update(UploadContract.UPLOAD_URIS.CONTENT_URI, values,
+                            UploadContract.UPLOAD_COLUMNS.COLUMN_GROUP + " = ? AND "
+                                    + UploadContract.UPLOAD_COLUMNS.COLUMN_STATUS + " < 200",
+                            new String[]{name});
+                    continue;
+                }
+
+                final ContentValues values = new ContentValues();
+                values.put(UploadContract.UPLOAD_GROUPS.COLUMN_COMPLETED, true);
+                resolver.update(UploadContract.UPLOAD_GROUPS.CONTENT_URI, values,
+                        UploadContract.UPLOAD_GROUPS._ID + " = ?",
+                        new String[]{Long.toString(groupId)});
+
+                final Intent intent = new Intent(UploadManager.ACTION_GROUP_COMPLETE);
+                intent.setPackage(getPackageName());
+                intent.putExtra(UploadManager.EXTRA_GROUP, name);
+                intent.putExtra(UploadManager.EXTRA_GROUP_SUCCESSFUL, failed == 0);
+                sendBroadcast(intent);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     private void updateUpload(UploadInfo.Reader reader, UploadInfo info) {
         reader.updateFromDatabase(info);
 //        Log.v("UploadService", info.mId + " status: " + info.mStatus);
     }
 
     private UploadInfo insertUploadLocked(UploadInfo.Reader reader) {
-        final UploadInfo info = reader.newUploadInfo(this, mNotifier);
+        final UploadInfo info = reader.newUploadInfo(this, mNotifier, mLocks, mNetworkMonitor);
         if (info.mVisibility != UploadContract.VISIBILITY_STATUS.HIDDEN_COMPLETE) {
             mUploads.put(info.mId, info);
         }
@@ -290,10 +538,12 @@ public class UploadService extends Service {
 
     private void deleteUploadLocked(long id) {
         UploadInfo info = mUploads.get(id);
+        UploadSources.release(this, Uri.parse(info.mFileUri));
         if (info.mStatus == UploadContract.UPLOAD_STATUS.RUNNING) {
             info.mStatus = UploadContract.UPLOAD_STATUS.CANCELED;
         }
         mUploads.remove(info.mId);
+        UploadEvents.stateChanged(id, UploadContract.UPLOAD_STATUS.CANCELED);
     }
 
     private class UploadManagerContentObserver extends ContentObserver {
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import me.ctknight.uploadmanager.util.LogUtils;
+
+/**
+ * Upload data that doesn't come from a file: byte arrays, ByteBuffers and {@link BodyProducer}s.
+ * <p>
+ * Such an upload gets a {@code uploadsource://<token>/<file name>} URI as its file URI. While the
+ * process lives the data is read from memory; it is written to a file of its token in the app's
+ * private files when it has to outlive the process, that is when the upload isn't running
+ * right now or the process is asked to trim its memory, and when the arrays and buffers held
+ * would exceed {@link #MAX_MEMORY_BYTES}. Producers hold no memory here but are spilled the same
+ * way, since a new process can't call them.
+ */
+final class UploadSources {
+
+    static final String SCHEME = "uploadsource";
+    // array and buffer bytes held by all sources that weren't spilled yet
+    static final long MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final String SPILL_DIR = "upload_sources";
+    private static final String TAG = LogUtils.makeTag(UploadSources.class);
+
+    // all guarded by UploadSources.class
+    private static final Map<String, Source> sSources = new HashMap<>();
+    private static long sMemoryBytes;
+
+    private UploadSources() {
+    }
+
+    static boolean isSource(Uri uri) {
+        return SCHEME.equals(uri.getScheme());
+    }
+
+    static BodyProducer of(final byte[] data) {
+        return new BodyProducer() {
+            @Override
+            public long getLength() {
+                return data.length;
+            }
+
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(data);
+            }
+        };
+    }
+
+    static BodyProducer of(ByteBuffer data) {
+        final ByteBuffer buffer = data.slice().asReadOnlyBuffer();
+        return new BodyProducer() {
+            @Override
+            public long getLength() {
+                return buffer.remaining();
+            }
+
+            @Override
+            public InputStream open() {
+                return new ByteBufferInputStream(buffer.duplicate());
+            }
+        };
+    }
+
+    /**
+     * @param memoryBytes bytes the producer keeps in memory, 0 if it generates them
+     * @return the file URI of the upload
+     */
+    static synchronized Uri register(BodyProducer producer, long memoryBytes, String fileName) {
+        final String token = UUID.randomUUID().toString();
+        sSources.put(token, new Source(producer, memoryBytes));
+        sMemoryBytes += memoryBytes;
+        return new Uri.Builder().scheme(SCHEME).authority(token).appendPath(fileName).build();
+    }
+
+    /**
+     * Spill {@code uri} if the sources held in memory exceed {@link #MAX_MEMORY_BYTES}.
+     */
+    static void spillIfOverBudget(Context context, Uri uri) {
+        final boolean overBudget;
+        synchronized (UploadSources.class) {
+            overBudget = sMemoryBytes > MAX_MEMORY_BYTES;
+        }
+        if (overBudget) {
+            spill(context, uri);
+        }
+    }
+
+    /**
+     * Write the data of {@code uri} to its file and let go of it, so it survives the process.
+     * Does nothing if it was spilled already or isn't a source.
+     */
+    static void spill(Context context, Uri uri) {
+        if (!isSource(uri)) {
+            return;
+        }
+        final String token = uri.getAuthority();
+        final Source source;
+        synchronized (UploadSources.class) {
+            source = sSources.get(token);
+        }
+        if (source == null) {
+            return;
+        }
+        final File file = getSpillFile(context, token);
+        try {
+            writeSpillFile(source.mProducer, file);
+        } catch (IOException e) {
+            // keep it in memory, the upload still works as long as the process lives
+            Log.w(TAG, "spill: couldn't write " + file, e);
+            return;
+        }
+        synchronized (UploadSources.class) {
+            if (sSources.get(token) == source) {
+                sSources.remove(token);
+                sMemoryBytes -= source.mMemoryBytes;
+                return;
+            }
+        }
+        // released while it was written
+        file.delete();
+    }
+
+    /**
+     * Spill every source still in memory, for when the process may be killed soon.
+     */
+    static void spillAll(Context context) {
+        final List<String> tokens;
+        synchronized (UploadSources.class) {
+            tokens = new ArrayList<>(sSources.keySet());
+        }
+        for (String token : tokens) {
+            spill(context, new Uri.Builder().scheme(SCHEME).authority(token).build());
+        }
+    }
+
+    /**
+     * @return exact size of the data of {@code uri}, or -1 if it is gone
+     */
+    static long getLength(Context context, Uri uri) {
+        final String token = uri.getAuthority();
+        synchronized (UploadSources.class) {
+            final Source source = sSources.get(token);
+            if (source != null) {
+                return source.mProducer.getLength();
+            }
+        }
+        final File file = getSpillFile(context, token);
+        return file.exists() ? file.length() : -1;
+    }
+
+    /**
+     * @throws FileNotFoundException if the data is neither in memory nor spilled, like after the
+     *                               process died before a spill
+     */
+    static InputStream open(Context context, Uri uri) throws IOException {
+        final String token = uri.getAuthority();
+        final Source source;
+        synchronized (UploadSources.class) {
+            source = sSources.get(token);
+        }
+        if (source != null) {
+            return new LengthInputStream(source.mProducer.open(), source.mProducer.getLength());
+        }
+        return new FileInputStream(getSpillFile(context, token));
+    }
+
+    /**
+     * Forget the data of a finished or deleted upload, in memory and on disk.
+     */
+    static void release(Context context, Uri uri) {
+        if (!isSource(uri)) {
+            return;
+        }
+        final String token = uri.getAuthority();
+        synchronized (UploadSources.class) {
+            final Source source = sSources.remove(token);
+            if (source != null) {
+                sMemoryBytes -= source.mMemoryBytes;
+            }
+        }
+        getSpillFile(context, token).delete();
+    }
+
+    private static File getSpillFile(Context context, String token) {
+        return new File(new File(context.getFilesDir(), SPILL_DIR), token);
+    }
+
+    private static void writeSpillFile(BodyProducer producer, File file) throws IOException {
+        final File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create " + dir);
+        }
+        // readers only ever see a complete file
+        final File temp = new File(dir, file.getName() + ".tmp");
+        final byte[] buffer = new byte[UploadContract.Constants.BUFFER_SIZE];
+        final InputStream in = producer.open();
+        try {
+            final OutputStream out = new FileOutputStream(temp);
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't rename " + temp);
+        }
+    }
+
+    private static final class Source {
+        final BodyProducer mProducer;
+        final long mMemoryBytes;
+
+        Source(BodyProducer producer, long memoryBytes) {
+            mProducer = producer;
+            mMemoryBytes = memoryBytes;
+        }
+    }
+
+    /**
+     * Reports the bytes left of a stream of known length as available, request bodies take that
+     * as their length.
+     */
+    private static final class LengthInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        LengthInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, mRemaining));
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What {@link UploadService} is doing right now, see {@link UploadManager#getStateSnapshot()}.
+ * Built from memory only, no database query is involved, so it can be collected periodically.
+ * Byte counts and errors are the ones last written to the database by the upload threads.
+ */
+public final class UploadStateSnapshot {
+
+    private final long mTime;
+    private final boolean mServiceRunning;
+    private final int mActiveTasks;
+    private final int mQueuedTasks;
+    private final long mUpdateCount;
+    private final long mMaxUpdateMillis;
+    private final int mLastUpdateRows;
+    private final boolean mWaitingForNetwork;
+    private final boolean mWaitingForUnmetered;
+    private final List<UploadState> mUploads;
+
+    UploadStateSnapshot(long time, boolean serviceRunning, int activeTasks, int queuedTasks,
+                        long updateCount, long maxUpdateMillis, int lastUpdateRows,
+                        boolean waitingForNetwork, boolean waitingForUnmetered,
+                        List<UploadState> uploads) {
+        mTime = time;
+        mServiceRunning = serviceRunning;
+        mActiveTasks = activeTasks;
+        mQueuedTasks = queuedTasks;
+        mUpdateCount = updateCount;
+        mMaxUpdateMillis = maxUpdateMillis;
+        mLastUpdateRows = lastUpdateRows;
+        mWaitingForNetwork = waitingForNetwork;
+        mWaitingForUnmetered = waitingForUnmetered;
+        mUploads = Collections.unmodifiableList(uploads);
+    }
+
+    /**
+     * @return a snapshot of a service that isn't running in this process
+     */
+    static UploadStateSnapshot notRunning() {
+        return new UploadStateSnapshot(System.currentTimeMillis(), false, 0, 0, 0, 0, 0,
+                false, false, Collections.<UploadState>emptyList());
+    }
+
+    /**
+     * @return wall clock time the snapshot was taken at
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * @return whether the upload service runs in this process, everything else is empty if not
+     */
+    public boolean isServiceRunning() {
+        return mServiceRunning;
+    }
+
+    /**
+     * @return upload threads currently running
+     */
+    public int getActiveTasks() {
+        return mActiveTasks;
+    }
+
+    /**
+     * @return uploads submitted to the executor that wait for a free thread
+     */
+    public int getQueuedTasks() {
+        return mQueuedTasks;
+    }
+
+    /**
+     * @return update passes run since the service started
+     */
+    public long getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    public long getMaxUpdateMillis() {
+        return mMaxUpdateMillis;
+    }
+
+    /**
+     * @return rows read by the last update pass
+     */
+    public int getLastUpdateRows() {
+        return mLastUpdateRows;
+    }
+
+    /**
+     * @return whether some upload waits for a network to show up
+     */
+    public boolean isWaitingForNetwork() {
+        return mWaitingForNetwork;
+    }
+
+    /**
+     * @return whether the uploads waiting for a network all need an unmetered one
+     */
+    public boolean isWaitingForUnmetered() {
+        return mWaitingForUnmetered;
+    }
+
+    /**
+     * @return every upload tracked by the service, in no particular order
+     */
+    public List<UploadState> getUploads() {
+        return mUploads;
+    }
+
+    /**
+     * @return bytes sent so far by uploads whose thread is running
+     */
+    public long getInFlightBytes() {
+        long bytes = 0;
+        for (UploadState upload : mUploads) {
+            if (upload.isTaskActive()) {
+                bytes += upload.getCurrentBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return bytes still to send by uploads whose thread is running and whose size is known
+     */
+    public long getInFlightRemainingBytes() {
+        long bytes = 0;
+        for (UploadState upload : mUploads) {
+            if (upload.isTaskActive() && upload.getTotalBytes() > 0) {
+                bytes += Math.max(0, upload.getTotalBytes() - upload.getCurrentBytes());
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Print one line per upload, used by {@link UploadService#dump}.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("UploadService: running=" + mServiceRunning
+                + " activeTasks=" + mActiveTasks
+                + " queuedTasks=" + mQueuedTasks
+                + " inFlightBytes=" + getInFlightBytes()
+                + " remainingBytes=" + getInFlightRemainingBytes());
+        writer.println("  updates=" + mUpdateCount
+                + " maxUpdateMs=" + mMaxUpdateMillis
+                + " lastUpdateRows=" + mLastUpdateRows
+                + " waitingForNetwork=" + mWaitingForNetwork
+                + " waitingForUnmetered=" + mWaitingForUnmetered);
+        writer.println("  uploads (" + mUploads.size() + "):");
+        for (UploadState upload : mUploads) {
+            writer.println("    " + upload);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UploadStateSnapshot{time=" + mTime
+                + ", running=" + mServiceRunning
+                + ", activeTasks=" + mActiveTasks
+                + ", queuedTasks=" + mQueuedTasks
+                + ", updates=" + mUpdateCount
+                + ", maxUpdateMs=" + mMaxUpdateMillis
+                + ", lastUpdateRows=" + mLastUpdateRows
+                + ", waitingForNetwork=" + mWaitingForNetwork
+                + ", waitingForUnmetered=" + mWaitingForUnmetered
+                + ", uploads=" + mUploads + "}";
+    }
+
+    /**
+     * One upload as the service sees it.
+     */
+    public static final class UploadState {
+
+        private final long mId;
+        private final int mStatus;
+        private final int mControl;
+        private final boolean mTaskActive;
+        private final boolean mHeld;
+        private final long mCurrentBytes;
+        private final long mTotalBytes;
+        private final long mSpeed;
+        private final int mNumFailed;
+        private final long mNextActionTime;
+        private final long mLastModification;
+        private final String mErrorMsg;
+
+        UploadState(long id, int status, int control, boolean taskActive, boolean held,
+                    long currentBytes, long totalBytes, long speed, int numFailed,
+                    long nextActionTime, long lastModification, String errorMsg) {
+            mId = id;
+            mStatus = status;
+            mControl = control;
+            mTaskActive = taskActive;
+            mHeld = held;
+            mCurrentBytes = currentBytes;
+            mTotalBytes = totalBytes;
+            mSpeed = speed;
+            mNumFailed = numFailed;
+            mNextActionTime = nextActionTime;
+            mLastModification = lastModification;
+            mErrorMsg = errorMsg;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * @return one of {@link UploadContract.UPLOAD_STATUS}
+         */
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * @return one of {@link UploadContract.CONTROL}
+         */
+        public int getControl() {
+            return mControl;
+        }
+
+        /**
+         * @return whether an upload thread for it is submitted and not finished yet, it may still
+         * be queued in the executor
+         */
+        public boolean isTaskActive() {
+            return mTaskActive;
+        }
+
+        /**
+         * @return whether it is a deferrable upload held back until its burst is due
+         */
+        public boolean isHeld() {
+            return mHeld;
+        }
+
+        public long getCurrentBytes() {
+            return mCurrentBytes;
+        }
+
+        /**
+         * @return size of the upload, or -1 if unknown
+         */
+        public long getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        /**
+         * @return last measured speed in bytes per second, or 0 if not uploading
+         */
+        public long getSpeed() {
+            return mSpeed;
+        }
+
+        public int getNumFailed() {
+            return mNumFailed;
+        }
+
+        /**
+         * @return wall clock time the service will look at it again, like the retry deadline of
+         * an upload waiting to retry, 0 if right away or {@link Long#MAX_VALUE} if never
+         */
+        public long getNextActionTime() {
+            return mNextActionTime;
+        }
+
+        public long getLastModification() {
+            return mLastModification;
+        }
+
+        /**
+         * @return the error of the last failed attempt, or null
+         */
+        public String getErrorMsg() {
+            return mErrorMsg;
+        }
+
+        @Override
+        public String toString() {
+            return "UploadState{id=" + mId
+                    + ", status=" + mStatus
+                    + ", control=" + mControl
+                    + ", active=" + mTaskActive
+                    + ", held=" + mHeld
+                    + ", bytes=" + mCurrentBytes + "/" + mTotalBytes
+                    + ", speed=" + mSpeed
+                    + ", failed=" + mNumFailed
+                    + ", nextAction=" + mNextActionTime
+                    + ", lastMod=" + mLastModification
+                    + ", error=" + mErrorMsg + "}";
+        }
+    }
+}
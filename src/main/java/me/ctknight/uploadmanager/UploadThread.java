@@ -7,10 +7,10 @@ package me.ctknight.uploadmanager;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.content.res.AssetFileDescriptor;
+import android.net.Network;
+import android.net.TrafficStats;
 import android.net.Uri;
-import android.os.PowerManager;
 import android.os.Process;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
@@ -24,10 +24,13 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import me.ctknight.uploadmanager.util.LogUtils;
+import me.ctknight.uploadmanager.util.ProgressThrottle;
 import me.ctknight.uploadmanager.util.okhttputil.CountingInputStreamMultipartBody;
+import me.ctknight.uploadmanager.util.okhttputil.CountingInputStreamRequestBody;
 import okhttp3.Call;
 import okhttp3.Headers;
 import okhttp3.MediaType;
@@ -36,13 +39,15 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 
-import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
-import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.CANCELED;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.CANNOT_RESUME;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.HTTP_DATA_ERROR;
+import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.PAUSED_BY_APP;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.RUNNING;
+import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.MIN_ARTIFICIAL_ERROR_STATUS;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.SUCCESS;
+import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.UNHANDLED_HTTP_CODE;
+import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.UNHANDLED_REDIRECT;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.UNKNOWN_ERROR;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.WAITING_FOR_NETWORK;
 import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.WAITING_TO_RETRY;
@@ -51,50 +56,94 @@ import static me.ctknight.uploadmanager.UploadContract.UPLOAD_STATUS.WAITING_TO_
 public class UploadThread implements Runnable, CountingInputStreamMultipartBody.ProgressListener {
 
     private static final int DEFAULT_TIMEOUT = (int) (20 * 1000L);
+    // resumable uploads speak the core of the tus protocol: HEAD for the offset, PATCH from it
+    private static final String HEADER_TUS_RESUMABLE = "Tus-Resumable";
+    private static final String TUS_VERSION = "1.0.0";
+    private static final String HEADER_UPLOAD_OFFSET = "Upload-Offset";
+    private static final MediaType OFFSET_OCTET_STREAM =
+            MediaType.parse("application/offset+octet-stream");
 
     private static final String TAG = LogUtils.makeTag(UploadThread.class);
     private static final OkHttpClient mClient = buildClient();
     private static final Object mMonitor = new Object();
+    private static final Random sRandom = new Random();
+    private static volatile ResponsePolicy sResponsePolicy = new ResponsePolicy.Default();
     private final Context mContext;
     private final UploadNotifier mNotifier;
+    private final UploadLocks mLocks;
+    private final NetworkMonitor mNetworkMonitor;
     private final long mId;
     private final UploadInfo mInfo;
     // global setting
     private final UploadInfoDelta mInfoDelta;
-    private Call mCall;
+    private volatile Call mCall;
+    // set by stop(), no new call is made once it is
+    private volatile boolean mStopped;
+    // bytes the server confirmed having when this attempt started, 0 unless resumed
+    private long mConfirmedOffset;
     // upload has started or not
     private boolean mMadeProgress = false;
-    private long mLastUpdateBytes = 0;
-    private long mLastUpdateTime = 0;
-    //TYPE_NONE
-    private int mNetworkType = -1;
-    private long mSpeed;
+    private final ProgressThrottle mProgressThrottle = new ProgressThrottle();
+    // network the upload started on, null if unknown or sockets can't be bound
+    private Network mNetwork;
     private long mSpeedSampleStart;
-    private long mSpeedSampleBytes;
-
-    public UploadThread(Context context, UploadNotifier notifier, UploadInfo info) {
+    private long mSpeed;
+    private long mRecordedBytes;
+    private long mLastProgressEvent;
+    // wall clock start of this attempt and how long it waited for it
+    private long mAttemptStartTime;
+    private long mQueueWaitMillis = -1;
+
+    public UploadThread(Context context, UploadNotifier notifier, UploadLocks locks,
+                        NetworkMonitor networkMonitor, UploadInfo info) {
         mContext = context.getApplicationContext();
         mNotifier = notifier;
+        mLocks = locks;
+        mNetworkMonitor = networkMonitor;
 
         mId = info.mId;
         mInfo = info;
         mInfoDelta = new UploadInfoDelta(info);
     }
 
+    /**
+     * Server status codes are never retryable here, whether a response is retried is decided by
+     * the {@link ResponsePolicy} alone, which maps it to {@link UploadContract.UPLOAD_STATUS#HTTP_DATA_ERROR}.
+     */
     public static boolean isStatusRetryable(int status) {
         switch (status) {
             case HTTP_DATA_ERROR:
-            case HTTP_UNAVAILABLE:
-            case HTTP_INTERNAL_ERROR:
             case RUNNING:
                 return true;
         }
         return false;
     }
 
+    /**
+     * @return whether a final HTTP error can be stored as the status as it is, without being
+     * taken for one of the artificial statuses
+     */
+    private static boolean isStorableHttpError(int code) {
+        if (code >= 400 && code < MIN_ARTIFICIAL_ERROR_STATUS) {
+            return true;
+        }
+        switch (code) {
+            case UploadContract.UPLOAD_STATUS.FAILED:
+            case UploadContract.UPLOAD_STATUS.FILE_NOT_FOUND:
+            case UploadContract.UPLOAD_STATUS.DEVICE_NOT_FOUND_ERROR:
+                return false;
+        }
+        return code >= 500 && code < 600;
+    }
+
+    static void setResponsePolicy(@NonNull ResponsePolicy policy) {
+        sResponsePolicy = policy;
+    }
+
     @NonNull
     private static OkHttpClient buildClient() {
         OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .eventListenerFactory(UploadEventListener.FACTORY)
                 .connectTimeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS)
                 .readTimeout(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
         return builder.build();
@@ -103,7 +152,6 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
     @Override
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        final ConnectivityManager connectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
 
         if (UploadInfo.queryUploadStatus(mContext.getContentResolver(), mId) == SUCCESS) {
             if (BuildConfig.DEBUG) {
@@ -112,17 +160,20 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
             return;
         }
 
-        PowerManager.WakeLock wakelock = null;
-        final PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        mAttemptStartTime = System.currentTimeMillis();
+        final long waitingSince = mInfo.mNumFailed == 0 ? mInfo.mEnqueueTime : mInfo.mLastMod;
+        if (waitingSince > 0) {
+            mQueueWaitMillis = Math.max(0, mAttemptStartTime - waitingSince);
+        }
 
+        final boolean traced = UploadTrace.beginAsync("upload", mId);
+        mLocks.acquireWakeLock();
+        TrafficStats.setThreadStatsTag(UploadContract.Constants.TRAFFIC_STATS_TAG);
         try {
-            wakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "UploadThread" + mId);
-            wakelock.acquire();
 
-            final NetworkInfo info = connectivityManager.getActiveNetworkInfo();
-            if (info != null) {
-                mNetworkType = info.getType();
-            }
+            mNetwork = mNetworkMonitor.getDefaultNetwork();
+            BandwidthEstimator.uploadStarted(mId, mNetwork,
+                    mNetworkMonitor.getUpstreamBandwidthKbps(mNetwork));
             if (!checkDeletedOrCanceled() || isStatusRetryable(mInfoDelta.mStatus)) {
                 executeUpload();
             }
@@ -138,6 +189,13 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
             mInfoDelta.mStatus = UploadContract.UPLOAD_STATUS.FILE_NOT_FOUND;
 
         } catch (UploadException e) {
+            if (mStopped) {
+                // paused or deleted, only the offset the server confirmed is worth keeping
+                mInfoDelta.mStatus = checkDeletedOrCanceled() ? CANCELED : PAUSED_BY_APP;
+                mInfoDelta.mErrorMsg = null;
+                mInfoDelta.mCurrentBytes = mConfirmedOffset;
+                return;
+            }
             mInfoDelta.mErrorMsg = e.getMessage();
 
             Log.w(TAG, "run: " + "Stop uploading with "
@@ -157,8 +215,7 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
                 }
 
                 if (mInfoDelta.mNumFailed < UploadContract.Constants.MAX_RETRIES) {
-                    final NetworkInfo info = connectivityManager.getActiveNetworkInfo();
-                    if (info != null && info.getType() == mNetworkType && info.isConnected()) {
+                    if (mNetworkMonitor.isConnected(mNetwork)) {
                         // Underlying network is still intact, use normal backoff
                         mInfoDelta.mStatus = WAITING_TO_RETRY;
                     } else {
@@ -172,7 +229,10 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
                     mInfoDelta.writeToDatabase();
                 }
             } else {
-                mInfoDelta.mStatus = CANNOT_RESUME;
+                // keep final HTTP errors so clients can see the server's status code
+                if (!UploadContract.isFailed(mInfoDelta.mStatus)) {
+                    mInfoDelta.mStatus = CANNOT_RESUME;
+                }
                 mInfoDelta.writeToDatabase();
             }
 
@@ -183,6 +243,7 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
             Log.e(TAG, "Failed: " + mInfoDelta.mErrorMsg, t);
         } finally {
 
+            BandwidthEstimator.uploadFinished(mId);
             mNotifier.notifyUploadSpeed(mId, 0);
 
 
@@ -191,14 +252,28 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
                     mInfoDelta.mVisibility = UploadContract.VISIBILITY_STATUS.VISIBLE_COMPLETE;
                 }
                 mInfo.sendIntentIfRequested();
+                // a successful upload can't be restarted, its data isn't needed anymore
+                UploadSources.release(mContext, Uri.parse(mInfo.mFileUri));
+                if (mInfo.mDeferrable) {
+                    BurstScheduler.recordCompletion(mInfo, System.currentTimeMillis());
+                }
             }
 
             mInfoDelta.writeToDatabase();
 
-            if (wakelock != null) {
-                wakelock.release();
-                wakelock = null;
+            if (UploadContract.isComplete(mInfoDelta.mStatus)
+                    || UploadContract.isStatusError(mInfoDelta.mStatus)) {
+                if (UploadContract.isComplete(mInfoDelta.mStatus) && mInfo.mEnqueueTime > 0) {
+                    UploadMetrics.COMPLETION_LATENCY.record(
+                            System.currentTimeMillis() - mInfo.mEnqueueTime);
+                }
+                UploadMetrics.RETRIES.record(mInfoDelta.mNumFailed);
+                UploadMetrics.uploadFinished(mId);
             }
+
+            TrafficStats.clearThreadStatsTag();
+            mLocks.releaseWakeLock();
+            UploadTrace.endAsync("upload", mId, traced);
         }
     }
 
@@ -268,6 +343,8 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
                 case ContentResolver.SCHEME_FILE:
                     String path = fileUri.getPath();
                     return new FileInputStream(new File(path));
+                case UploadSources.SCHEME:
+                    return UploadSources.open(mContext, fileUri);
                 default:
                     throw new IOException("Unsupported Uri" + mInfo.mFileUri);
             }
@@ -277,11 +354,71 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
         }
     }
 
+    /**
+     * @return exact size of the file, or -1 if the provider doesn't know it
+     */
+    private long getFileLength() throws IOException {
+        final Uri fileUri = Uri.parse(mInfo.mFileUri);
+        if (ContentResolver.SCHEME_FILE.equals(fileUri.getScheme())) {
+            return new File(fileUri.getPath()).length();
+        }
+        if (UploadSources.isSource(fileUri)) {
+            return UploadSources.getLength(mContext, fileUri);
+        }
+        final AssetFileDescriptor fd =
+                mContext.getContentResolver().openAssetFileDescriptor(fileUri, "r");
+        if (fd == null) {
+            return -1;
+        }
+        try {
+            final long length = fd.getLength();
+            return length == AssetFileDescriptor.UNKNOWN_LENGTH ? -1 : length;
+        } finally {
+            fd.close();
+        }
+    }
+
     private RequestBody buildRequestBody() throws IOException {
+        final boolean traced = UploadTrace.begin("UploadThread.buildRequestBody");
+        try {
+            if (mInfo.mRawMethod != null) {
+                final long length = getFileLength();
+                setTotalBytes(length);
+                return buildRawBody(mInfo.mMimeType != null ? MediaType.parse(mInfo.mMimeType) : null,
+                        0, length);
+            }
+            return buildMultipartBody();
+        } finally {
+            UploadTrace.end(traced);
+        }
+    }
+
+    /**
+     * The file from {@code offset} as it is. Files are read through their channel, the other
+     * sources as a stream.
+     */
+    private RequestBody buildRawBody(MediaType type, long offset, long length) throws IOException {
+        final int chunkSize = BandwidthEstimator.getChunkSize(mId);
+        final Uri fileUri = Uri.parse(mInfo.mFileUri);
+        if (ContentResolver.SCHEME_FILE.equals(fileUri.getScheme())) {
+            final File file = new File(fileUri.getPath());
+            if (!file.isFile()) {
+                // opened only once the request is sent, fail like the stream would here
+                throw new FileNotFoundException("No file at " + file);
+            }
+            return new CountingInputStreamRequestBody(type, file, offset, length, chunkSize, this);
+        }
+        return new CountingInputStreamRequestBody(type, getFileInputStream(), offset, length,
+                chunkSize, this);
+    }
+
+    private RequestBody buildMultipartBody() throws IOException {
         CountingInputStreamMultipartBody.Builder builder = new CountingInputStreamMultipartBody.Builder()
                 .setType(CountingInputStreamMultipartBody.FORM)
-                .addFormDataPart("file", mInfo.mFileName,
-                        CountingInputStreamMultipartBody.create(MediaType.parse(mInfo.mMimeType), getFileInputStream()));
+                .addFormDataPart(mInfo.mDataFieldName != null ? mInfo.mDataFieldName : "file",
+                        mInfo.mFileName,
+                        CountingInputStreamMultipartBody.create(MediaType.parse(mInfo.mMimeType), getFileInputStream(),
+                                BandwidthEstimator.getChunkSize(mId)));
         for (Map.Entry<String, String> cd : mInfo.getContentDisposition().entrySet()) {
             builder.addFormDataPart(cd.getKey(), cd.getValue());
         }
@@ -295,21 +432,195 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
         return body;
     }
 
-    private Request buildRequest(URL url) throws IOException {
+    private Request buildRequest(URL url, UploadEventListener events) throws IOException {
         return new Request.Builder()
                 .headers(Headers.of(mInfo.getHeaders()))
                 .url(url)
-                .post(buildRequestBody())
+                .method(mInfo.mRawMethod != null ? mInfo.mRawMethod : "POST", buildRequestBody())
+                .tag(events)
                 .build();
     }
 
-    private void uploadData(URL url) throws IOException {
+    /**
+     * Send the rest of a resumable upload the server already has {@code offset} bytes of.
+     */
+    private Request buildResumeRequest(URL url, UploadEventListener events, long offset,
+                                       long length) throws IOException {
+        mConfirmedOffset = offset;
+        mInfoDelta.mCurrentBytes = offset;
+        // the skipped bytes were sent by an earlier attempt, not on this link now
+        mRecordedBytes = offset;
+        mProgressThrottle.persisted(offset, 0);
+        setTotalBytes(length);
+        final RequestBody body = buildRawBody(OFFSET_OCTET_STREAM, offset, length);
+        return new Request.Builder()
+                .headers(Headers.of(mInfo.getHeaders()))
+                .header(HEADER_TUS_RESUMABLE, TUS_VERSION)
+                .header(HEADER_UPLOAD_OFFSET, Long.toString(offset))
+                .url(url)
+                .patch(body)
+                .tag(events)
+                .build();
+    }
+
+    /**
+     * Ask the server how many bytes of a resumable upload it already has: a HEAD on the target
+     * answered with an {@code Upload-Offset} header.
+     *
+     * @return the confirmed offset, or -1 if the server doesn't support resuming this upload
+     */
+    private long queryServerOffset(URL url, long length) throws IOException {
+        final Request request = new Request.Builder()
+                .headers(Headers.of(mInfo.getHeaders()))
+                .header(HEADER_TUS_RESUMABLE, TUS_VERSION)
+                .url(url)
+                .head()
+                .build();
+        final Response response = newCall(request).execute();
+        try {
+            final String offset = response.header(HEADER_UPLOAD_OFFSET);
+            if (!response.isSuccessful() || offset == null) {
+                return -1;
+            }
+            final long result = Long.parseLong(offset.trim());
+            return result >= 0 && result <= length ? result : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Create a call of this upload on its network, so that {@link #stop()} can cancel it.
+     */
+    private Call newCall(Request request) throws IOException {
+        synchronized (mMonitor) {
+            if (mStopped) {
+                throw new IOException("Upload stopped");
+            }
+            mCall = mNetworkMonitor.bindClient(mClient, mNetwork).newCall(request);
+            return mCall;
+        }
+    }
+
+    /**
+     * Cancel the request in flight and keep this task from making new ones, for uploads that were
+     * paused or deleted. The task then ends like a failed attempt that isn't retried.
+     */
+    void stop() {
         synchronized (mMonitor) {
-            mCall = mClient.newCall(buildRequest(url));
+            mStopped = true;
+            if (mCall != null) {
+                mCall.cancel();
+            }
+        }
+    }
+
+    private void uploadData(URL url) throws IOException, UploadException {
+        final UploadEventListener events = new UploadEventListener(mId);
+        mInfoDelta.mRetryAfter = 0;
+        int code = 0;
+        String error = null;
+        // keep Wi-Fi out of power save only while bytes are actually flowing
+        mLocks.acquireWifiLock();
+        try {
+            // resume where the server is if it says where that is, restart the upload otherwise
+            final long length = mInfo.mResumable ? getFileLength() : -1;
+            final long offset = length >= 0 ? queryServerOffset(url, length) : -1;
+            if (offset >= 0 && offset == length) {
+                // an earlier attempt was stopped after the last byte got through
+                mInfoDelta.mCurrentBytes = length;
+                setTotalBytes(length);
+                return;
+            }
+            final Request request = offset >= 0
+                    ? buildResumeRequest(url, events, offset, length)
+                    : buildRequest(url, events);
+            Response response = newCall(request).execute();
+            code = response.code();
+            handleResponse(response);
+        } catch (IOException | UploadException e) {
+            error = e.getMessage();
+            throw e;
+        } finally {
+            mLocks.releaseWifiLock();
+            writeAttemptMetrics(events, code, error);
+            final long timeToFirstByte = events.getTimeToFirstByteMillis();
+            if (timeToFirstByte >= 0) {
+                UploadMetrics.TIME_TO_FIRST_BYTE.record(timeToFirstByte);
+            }
+            final long throughput = events.getRequestThroughput();
+            if (throughput >= 0) {
+                UploadMetrics.THROUGHPUT.record(throughput);
+            }
         }
-        Response response = mCall.execute();
-        String responseMsg = response.body().string();
-        recordResponse(responseMsg);
+    }
+
+    private void writeAttemptMetrics(UploadEventListener events, int code, String error) {
+        final ContentValues values = new ContentValues();
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_ATTEMPT, mInfo.mNumFailed + 1);
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_START_TIME, mAttemptStartTime);
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_QUEUE_WAIT, mQueueWaitMillis);
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_HTTP_CODE, code);
+        values.put(UploadContract.UPLOAD_METRICS.COLUMN_ERROR, error);
+        events.writeTo(values);
+        mContext.getContentResolver().insert(Uri.withAppendedPath(mInfo.getUploadsUri(),
+                UploadContract.UPLOAD_METRICS.URI_SEGMENT), values);
+    }
+
+    /**
+     * Record the response and map its status code through the installed {@link ResponsePolicy}.
+     * Returns normally only if the upload succeeded.
+     */
+    private void handleResponse(Response response) throws IOException, UploadException {
+        final int code = response.code();
+        final String inlineResponse = ResponseCapture.capture(mContext, mId, response.body());
+        recordResponse(inlineResponse, inlineResponse == null
+                ? ResponseCapture.getResponseFile(mContext, mId).getAbsolutePath() : null);
+
+        switch (sResponsePolicy.classify(code, response.headers())) {
+            case ResponsePolicy.ACTION_SUCCESS:
+                return;
+            case ResponsePolicy.ACTION_RETRY:
+                parseRetryAfterHeaders(response);
+                mInfoDelta.mStatus = HTTP_DATA_ERROR;
+                throw new UploadException("Retryable HTTP response: " + code + " " + response.message());
+            default:
+                if (code >= 300 && code < 400) {
+                    mInfoDelta.mStatus = UNHANDLED_REDIRECT;
+                } else if (isStorableHttpError(code)) {
+                    mInfoDelta.mStatus = code;
+                } else {
+                    mInfoDelta.mStatus = UNHANDLED_HTTP_CODE;
+                }
+                throw new UploadException("Unhandled HTTP response: " + code + " " + response.message());
+        }
+    }
+
+    /**
+     * Read Retry-After (delta-seconds only) into {@link UploadInfoDelta#mRetryAfter}, clamped and
+     * fuzzed like AOSP does.
+     */
+    private void parseRetryAfterHeaders(Response response) {
+        long retryAfter;
+        try {
+            retryAfter = Long.parseLong(response.header("Retry-After", "-1").trim());
+        } catch (NumberFormatException e) {
+            retryAfter = -1;
+        }
+        if (retryAfter < 0) {
+            retryAfter = 0;
+        } else {
+            if (retryAfter < UploadContract.Constants.MIN_RETRY_AFTER) {
+                retryAfter = UploadContract.Constants.MIN_RETRY_AFTER;
+            } else if (retryAfter > UploadContract.Constants.MAX_RETRY_AFTER) {
+                retryAfter = UploadContract.Constants.MAX_RETRY_AFTER;
+            }
+            retryAfter += sRandom.nextInt(UploadContract.Constants.MIN_RETRY_AFTER + 1);
+            retryAfter *= 1000;
+        }
+        mInfoDelta.mRetryAfter = (int) retryAfter;
     }
 
     public void setTotalBytes(long totalBytes) {
@@ -317,11 +628,14 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
         mInfoDelta.writeToDatabase();
     }
 
-    private void recordResponse(String responseMsg) {
+    private void recordResponse(String responseMsg, String responseFile) {
         if (BuildConfig.DEBUG) {
-            Log.d(TAG, "executeUpload: " + responseMsg);
+            Log.d(TAG, "executeUpload: " + (responseFile != null ? "response stored in " + responseFile
+                    : responseMsg.length() + " response chars captured"));
         }
         mInfoDelta.mServerResponse = responseMsg;
+        mInfoDelta.mServerResponseFile = responseFile;
+        mInfoDelta.mResponseRecorded = true;
         mInfoDelta.writeToDatabase();
     }
 
@@ -329,37 +643,29 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
         final long now = SystemClock.elapsedRealtime();
         final long currentBytes = mInfoDelta.mCurrentBytes;
 
-        final long sampleDelta = now - mSpeedSampleStart;
-        if (sampleDelta > 500) {
-            final long sampleSpeed = ((currentBytes - mSpeedSampleBytes) * 1000) / sampleDelta;
-
-            if (mSpeed == 0) {
-                mSpeed = sampleSpeed;
-            } else {
-                mSpeed = ((mSpeed * 3) + sampleSpeed) / 4;
-                //From AOSP, but why??
-            }
+        BandwidthEstimator.record(mId, currentBytes - mRecordedBytes);
+        mRecordedBytes = currentBytes;
 
-            //only notify after a full sample window time (sampleDelta)
-            if (mSpeedSampleStart != 0) {
-                mNotifier.notifyUploadSpeed(mId, mSpeed);
-            }
+        if (now - mSpeedSampleStart > 500) {
+            // our share of the windowed estimate, steadier than a per-thread average
+            mSpeed = BandwidthEstimator.getUploadShare(mId);
+            mNotifier.notifyUploadSpeed(mId, mSpeed);
             mSpeedSampleStart = now;
-            mSpeedSampleBytes = currentBytes;
         }
 
-        final long bytesDelta = currentBytes - mLastUpdateBytes;
-        final long timeDelta = now - mLastUpdateTime;
+        if (UploadEvents.hasListeners() && now - mLastProgressEvent >= UploadEvents.getProgressInterval()) {
+            UploadEvents.progress(mId, currentBytes, mInfoDelta.mTotalBytes, mSpeed);
+            mLastProgressEvent = now;
+        }
 
-        if (bytesDelta > UploadContract.Constants.MIN_PROGRESS_STEP && timeDelta > UploadContract.Constants.MIN_PROGRESS_TIME) {
+        if (mProgressThrottle.shouldPersist(currentBytes, now)) {
             mInfoDelta.writeToDatabaseOrThrow();
-            mLastUpdateBytes = currentBytes;
-            mLastUpdateTime = now;
+            mProgressThrottle.persisted(currentBytes, now);
         }
 
     }
 
-    private boolean checkDeletedOrCanceled() throws UploadException {
+    private boolean checkDeletedOrCanceled() {
         synchronized (mInfo) {
             return mInfo.mStatus == CANCELED || mInfo.mDeleted;
         }
@@ -376,7 +682,11 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
         public int mVisibility;
 
         public String mErrorMsg;
+        // response columns are only written once this attempt recorded a response, the service
+        // doesn't read them back so there is nothing to carry over from UploadInfo
+        public boolean mResponseRecorded;
         public String mServerResponse;
+        public String mServerResponseFile;
 
         public UploadInfoDelta(UploadInfo info) {
             mTargetUrl = info.mTargetUrl;
@@ -386,7 +696,6 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
             mRetryAfter = info.mRetryAfter;
             mTotalBytes = info.mTotalBytes;
             mCurrentBytes = info.mCurrentBytes;
-            mServerResponse = info.mServerResponse;
             mVisibility = info.mVisibility;
         }
 
@@ -402,7 +711,10 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
             values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_CURRENT_BYTES, mCurrentBytes);
             values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_LAST_MODIFICATION, System.currentTimeMillis());
             values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_ERROR_MSG, mErrorMsg);
-            values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_SERVER_RESPONSE, mServerResponse);
+            if (mResponseRecorded) {
+                values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_SERVER_RESPONSE, mServerResponse);
+                values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_SERVER_RESPONSE_FILE, mServerResponseFile);
+            }
             values.put(UploadContract.UPLOAD_COLUMNS.COLUMN_VISIBILITY, mVisibility);
             return values;
         }
@@ -411,8 +723,15 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
          * Blindly push update of current delta values to provider.
          */
         public void writeToDatabase() {
-            mContext.getContentResolver().update(mInfo.getUploadsUri(), buildContentValues(),
-                    null, null);
+            final boolean traced = UploadTrace.begin("UploadThread.writeToDatabase");
+            final long start = System.nanoTime();
+            try {
+                mContext.getContentResolver().update(mInfo.getUploadsUri(), buildContentValues(),
+                        null, null);
+            } finally {
+                UploadMetrics.DB_WRITE_LATENCY.record((System.nanoTime() - start) / 1000);
+                UploadTrace.end(traced);
+            }
         }
 
         /**
@@ -420,8 +739,17 @@ public class UploadThread implements Runnable, CountingInputStreamMultipartBody.
          * that we haven't been paused or deleted.
          */
         public void writeToDatabaseOrThrow() throws UploadException {
-            if (mContext.getContentResolver().update(mInfo.getUploadsUri(),
-                    buildContentValues(), UploadContract.UPLOAD_COLUMNS.COLUMN_DELETED + " == '0'", null) == 0) {
+            final boolean traced = UploadTrace.begin("UploadThread.writeToDatabaseOrThrow");
+            final long start = System.nanoTime();
+            final int updated;
+            try {
+                updated = mContext.getContentResolver().update(mInfo.getUploadsUri(),
+                        buildContentValues(), UploadContract.UPLOAD_COLUMNS.COLUMN_DELETED + " == '0'", null);
+            } finally {
+                UploadMetrics.DB_WRITE_LATENCY.record((System.nanoTime() - start) / 1000);
+                UploadTrace.end(traced);
+            }
+            if (updated == 0) {
                 throw new UploadException(Integer.toString(CANCELED) + "Upload deleted or missing!");
             }
         }
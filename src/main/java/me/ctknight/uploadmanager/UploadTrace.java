@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+import me.ctknight.uploadmanager.util.LogUtils;
+
+/**
+ * Systrace/Perfetto instrumentation, off until {@link UploadManager#setTracingEnabled(boolean)}.
+ * Disabled calls cost one volatile read.
+ * <p>
+ * Whether a section is traced is decided when it begins: {@code begin} returns the decision and
+ * the matching {@code end} takes it, so toggling tracing in between never ends a section that
+ * wasn't begun. Sections mark work on one thread. Async sections are keyed by upload id, so
+ * every upload shows up as its own track; they use the public {@code Trace.beginAsyncSection}
+ * on Q and later, and the hidden {@code Trace.asyncTraceBegin/End} below it, skipped if missing.
+ * Both are looked up through reflection, this library compiles against an older SDK.
+ */
+final class UploadTrace {
+
+    private static final String TAG = LogUtils.makeTag(UploadTrace.class);
+    // Trace.TRACE_TAG_APP
+    private static final long TRACE_TAG_APP = 1L << 12;
+    // Build.VERSION_CODES.Q
+    private static final int Q = 29;
+
+    private static volatile boolean sEnabled;
+    private static Method sAsyncTraceBegin;
+    private static Method sAsyncTraceEnd;
+    // whether sAsyncTraceBegin/End are the public methods, without the trace tag
+    private static boolean sPublicAsync;
+
+    private UploadTrace() {
+    }
+
+    static void setEnabled(boolean enabled) {
+        if (enabled && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Log.w(TAG, "setEnabled: tracing needs API 18");
+            return;
+        }
+        if (enabled) {
+            loadAsyncMethods();
+        }
+        sEnabled = enabled;
+    }
+
+    private static synchronized void loadAsyncMethods() {
+        if (sAsyncTraceBegin != null) {
+            return;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Q) {
+                sAsyncTraceBegin = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                sAsyncTraceEnd = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+                sPublicAsync = true;
+            } else {
+                sAsyncTraceBegin = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+                sAsyncTraceEnd = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+            }
+        } catch (Exception e) {
+            sAsyncTraceBegin = null;
+            sAsyncTraceEnd = null;
+            Log.w(TAG, "loadAsyncMethods: async trace sections unavailable", e);
+        }
+    }
+
+    /**
+     * Only enabled on API 18+, see {@link #setEnabled(boolean)}.
+     *
+     * @return whether the section was begun, pass it to {@link #end(boolean)}
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static boolean begin(String name) {
+        if (sEnabled) {
+            Trace.beginSection(name);
+            return true;
+        }
+        return false;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void end(boolean begun) {
+        if (begun) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Start {@code name} on the track of upload {@code id}, may end on another thread.
+     *
+     * @return whether the section was begun, pass it to {@link #endAsync(String, long, boolean)}
+     */
+    static boolean beginAsync(String name, long id) {
+        if (sEnabled && sAsyncTraceBegin != null) {
+            invoke(sAsyncTraceBegin, name, id);
+            return true;
+        }
+        return false;
+    }
+
+    static void endAsync(String name, long id, boolean begun) {
+        if (begun) {
+            invoke(sAsyncTraceEnd, name, id);
+        }
+    }
+
+    private static void invoke(Method method, String name, long id) {
+        try {
+            if (sPublicAsync) {
+                method.invoke(null, name, (int) id);
+            } else {
+                method.invoke(null, TRACE_TAG_APP, name, (int) id);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "invoke: " + method.getName() + " failed", e);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Clusters by tag that are kept across passes, so a pass over items whose tags didn't change
+ * allocates nothing: {@link #beginPass()} empties the item lists instead of dropping them, and
+ * the clusters are iterated by index instead of with an iterator.
+ * <p>
+ * Not thread-safe. Tags should be cached by the caller, building one per item and pass would
+ * allocate anyway.
+ *
+ * @param <T> the clustered items
+ * @param <C> the clusters, which can carry state of their own
+ */
+public final class ClusterMap<T, C extends ClusterMap.Cluster<T>> {
+
+    private final HashMap<String, C> mClusters = new HashMap<>();
+    private final ArrayList<C> mClusterList = new ArrayList<>();
+
+    /**
+     * Empty every cluster, the clusters themselves stay until {@link #removeAt(int)}.
+     */
+    public void beginPass() {
+        for (int i = 0; i < mClusterList.size(); i++) {
+            mClusterList.get(i).mItems.clear();
+        }
+    }
+
+    /**
+     * @return the cluster of {@code tag}, or null if there is none yet
+     */
+    public C get(String tag) {
+        return mClusters.get(tag);
+    }
+
+    public void add(C cluster) {
+        mClusters.put(cluster.mTag, cluster);
+        mClusterList.add(cluster);
+    }
+
+    public int size() {
+        return mClusterList.size();
+    }
+
+    public C valueAt(int index) {
+        return mClusterList.get(index);
+    }
+
+    public void removeAt(int index) {
+        final C cluster = mClusterList.remove(index);
+        mClusters.remove(cluster.mTag);
+    }
+
+    public static class Cluster<T> {
+        public final String mTag;
+        public final ArrayList<T> mItems = new ArrayList<>();
+
+        public Cluster(String tag) {
+            mTag = tag;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size map from positive long keys to long values that never boxes and never locks.
+ * <p>
+ * Meant for small sets of per-upload counters, like speeds, written by transfer threads and read
+ * by the notifier: each key must only be written by one thread at a time, any thread may read.
+ * Removed entries leave a tombstone that later puts reuse, so the table doesn't need rehashing.
+ * A put into a full table is dropped.
+ */
+public final class ConcurrentLongLongMap {
+
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -1;
+
+    private final AtomicLongArray mKeys;
+    private final AtomicLongArray mValues;
+    private final int mMask;
+
+    /**
+     * @param capacity most keys held at once, rounded up to a power of two
+     */
+    public ConcurrentLongLongMap(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mKeys = new AtomicLongArray(size);
+        mValues = new AtomicLongArray(size);
+        mMask = size - 1;
+    }
+
+    private int slot(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+
+    private int indexOf(long key) {
+        int slot = slot(key);
+        for (int i = 0; i <= mMask; i++) {
+            final long k = mKeys.get(slot);
+            if (k == key) {
+                return slot;
+            }
+            if (k == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the value of {@code key}, or 0 if there is none
+     */
+    public long get(long key) {
+        final int index = indexOf(key);
+        return index < 0 ? 0 : mValues.get(index);
+    }
+
+    /**
+     * @return false if the table is full and the value was dropped
+     */
+    public boolean put(long key, long value) {
+        if (key <= 0) {
+            throw new IllegalArgumentException("key must be positive");
+        }
+        final int index = indexOf(key);
+        if (index >= 0) {
+            mValues.set(index, value);
+            return true;
+        }
+        int slot = slot(key);
+        for (int i = 0; i <= mMask; i++) {
+            final long k = mKeys.get(slot);
+            if ((k == EMPTY || k == REMOVED) && mKeys.compareAndSet(slot, k, key)) {
+                mValues.set(slot, value);
+                return true;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return false;
+    }
+
+    public void remove(long key) {
+        final int index = indexOf(key);
+        if (index >= 0) {
+            mValues.set(index, 0);
+            mKeys.set(index, REMOVED);
+        }
+    }
+}
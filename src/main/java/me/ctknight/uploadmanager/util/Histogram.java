@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager.util;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-memory histogram of non-negative longs with power-of-two buckets: bucket {@code i} holds
+ * values in {@code [2^(i-1), 2^i)}, bucket 0 holds 0. Recording is O(1) and never allocates;
+ * percentiles are accurate to within a factor of two.
+ */
+public final class Histogram {
+
+    private static final int BUCKET_COUNT = 64;
+
+    // guarded by this
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    private static int bucketOf(long value) {
+        return value <= 0 ? 0 : Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets[bucketOf(value)]++;
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(Arrays.copyOf(mBuckets, BUCKET_COUNT), mCount, mSum,
+                mCount == 0 ? 0 : mMin, mMax);
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mBuckets, 0);
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * Immutable copy of a {@link Histogram}.
+     */
+    public static final class Snapshot {
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSum;
+        private final long mMin;
+        private final long mMax;
+
+        Snapshot(long[] buckets, long count, long sum, long min, long max) {
+            mBuckets = buckets;
+            mCount = count;
+            mSum = sum;
+            mMin = min;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public long getMin() {
+            return mMin;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket holding the given percentile, capped at the
+         * largest recorded value
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    final long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upper, mMax);
+                }
+            }
+            return mMax;
+        }
+
+        /**
+         * @return number of values recorded in bucket {@code index}, see {@link Histogram}
+         */
+        public long getBucketCount(int index) {
+            return mBuckets[index];
+        }
+
+        public int getBucketSize() {
+            return mBuckets.length;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount + ", mean=" + getMean() + ", min=" + mMin
+                    + ", p50=" + getPercentile(50) + ", p90=" + getPercentile(90)
+                    + ", p99=" + getPercentile(99) + ", max=" + mMax;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager.util;
+
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pool upload attempts run on. It runs {@link Task}s only; queued ones start by priority,
+ * higher first, then by id, so older uploads go before newer ones of the same priority.
+ * <p>
+ * Free of Android classes, so the load harness queues its uploads through it too.
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+
+    /**
+     * @param threads most tasks running at once, idle threads time out
+     */
+    public PriorityExecutor(int threads) {
+        super(threads, threads, 10, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Move {@code task} to the place of {@code priority} if it is still queued, the queue only
+     * orders tasks when they are added. Only call it from one thread per task.
+     */
+    public void reprioritize(Task task, int priority) {
+        if (task.mPriority != priority && getQueue().remove(task)) {
+            task.mPriority = priority;
+            execute(task);
+        }
+    }
+
+    public static final class Task extends FutureTask<Void> implements Comparable<Task> {
+        private final long mId;
+        // only changed while out of the queue, see reprioritize()
+        private volatile int mPriority;
+
+        public Task(Runnable runnable, long id, int priority) {
+            super(runnable, null);
+            mId = id;
+            mPriority = priority;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mId < other.mId ? -1 : (mId == other.mId ? 0 : 1);
+        }
+    }
+}
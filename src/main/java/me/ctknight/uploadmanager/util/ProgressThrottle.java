@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager.util;
+
+/**
+ * Decides which progress callbacks of an upload attempt are written to the database: only once
+ * more than {@link #MIN_PROGRESS_STEP} bytes were sent and more than {@link #MIN_PROGRESS_TIME} ms
+ * passed since the last write. Free of Android classes, so the load harness counts progress
+ * writes with the rule UploadThread applies.
+ */
+public final class ProgressThrottle {
+
+    public static final int MIN_PROGRESS_STEP = 65536;
+    public static final long MIN_PROGRESS_TIME = 2000;
+
+    private long mLastBytes;
+    private long mLastTime;
+
+    /**
+     * @param now monotonic time in ms
+     */
+    public boolean shouldPersist(long bytes, long now) {
+        return bytes - mLastBytes > MIN_PROGRESS_STEP && now - mLastTime > MIN_PROGRESS_TIME;
+    }
+
+    /**
+     * {@code bytes} were written at {@code now}, or were sent by an earlier attempt.
+     */
+    public void persisted(long bytes, long now) {
+        mLastBytes = bytes;
+        mLastTime = now;
+    }
+}
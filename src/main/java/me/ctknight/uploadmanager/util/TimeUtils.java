@@ -32,4 +32,23 @@ public class TimeUtils {
         }
     }
 
+    /**
+     * @return a value that is equal for two durations exactly when
+     * {@link #formatDuration(long, Resources)} would show the same text for them
+     */
+    public static long durationKey(long millis) {
+        final long SECOND_IN_MILLIS = 1000;
+        final long MINUTE_IN_MILLIS = SECOND_IN_MILLIS * 60;
+        final long HOUR_IN_MILLIS = MINUTE_IN_MILLIS * 60;
+
+        // the low two bits hold the unit
+        if (millis >= HOUR_IN_MILLIS) {
+            return ((millis + 1800000) / HOUR_IN_MILLIS) << 2 | 2;
+        } else if (millis >= MINUTE_IN_MILLIS) {
+            return ((millis + 30000) / MINUTE_IN_MILLIS) << 2 | 1;
+        } else {
+            return ((millis + 500) / SECOND_IN_MILLIS) << 2;
+        }
+    }
+
 }
@@ -7,6 +7,7 @@ All Rights Reserved. */
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import okio.Buffer;
@@ -101,6 +102,23 @@ public class CountingForwardBufferedSink implements BufferedSink, Sink {
         return singleWritten;
     }
 
+    /**
+     * Writes the remaining bytes of {@code source}, see
+     * {@link java.nio.channels.WritableByteChannel#write(ByteBuffer)}.
+     */
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        delegate.flush();
+        written += source.remaining();
+        callback.notifyWritten(written);
+        return delegate.write(source);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
     /**
      * Like {@link OutputStream#write(byte[])}, this writes a complete byte array to
      * this sink.
@@ -67,6 +67,7 @@ public class CountingInputStreamMultipartBody extends RequestBody implements Cou
     private static final byte[] CRLF = {'\r', '\n'};
     private static final byte[] DASHDASH = {'-', '-'};
     private static final int SEGMENT_SIZE = 2048;
+    private static final int DEFAULT_CHUNK_SIZE = 2048;
     private final ByteString boundary;
     private final MediaType originalType;
     private final MediaType contentType;
@@ -83,7 +84,17 @@ public class CountingInputStreamMultipartBody extends RequestBody implements Cou
     }
 
     public static RequestBody create(final MediaType contentType, final InputStream in) {
+        return create(contentType, in, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Like {@link #create(MediaType, InputStream)}, copying {@code chunkSize} bytes per write so
+     * the progress listener is called once per chunk.
+     */
+    public static RequestBody create(final MediaType contentType, final InputStream in,
+                                     final int chunkSize) {
         if (in == null) throw new NullPointerException("InputStream == null");
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize <= 0");
 
         return new RequestBody() {
             @Override
@@ -102,7 +113,6 @@ public class CountingInputStreamMultipartBody extends RequestBody implements Cou
                 try {
                     source = Okio.source(in);
 
-                    int chunkSize = 2048;
                     long total = contentLength();
                     long current = 0;
                     for (; ; ) {
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2018. All rights reserved. Lai Jiewen <alanljw12345@gmail.com>
+ */
+
+package me.ctknight.uploadmanager.util.okhttputil;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okhttp3.internal.Util;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * A request body sending the bytes of a stream or file as they are, without multipart framing.
+ * <p>
+ * The source is skipped to {@code offset} first, then the rest up to {@code length} is written
+ * in chunks of {@code chunkSize}. After each chunk the listener gets the position in the whole
+ * source, so progress of a resumed upload continues from where the earlier attempt stopped.
+ * The sink isn't flushed per chunk, it sends full segments on its own, so the listener counts
+ * bytes handed to the connection rather than bytes on the wire. Okio reads a stream or file
+ * through a byte array into its segments, those segments are then moved to the sink without
+ * another copy; a file is positioned by its channel instead of read up to the offset.
+ */
+public class CountingInputStreamRequestBody extends RequestBody {
+
+    private final MediaType contentType;
+    private final InputStream in;
+    private final File file;
+    private final long offset;
+    private final long length;
+    private final int chunkSize;
+    private final CountingInputStreamMultipartBody.ProgressListener listener;
+
+    /**
+     * @param length size of the whole source, it must be exact; or -1 if unknown, the body is
+     *               then sent chunked from {@code offset} 0
+     */
+    public CountingInputStreamRequestBody(MediaType contentType, InputStream in, long offset,
+                                          long length, int chunkSize,
+                                          CountingInputStreamMultipartBody.ProgressListener listener) {
+        this(contentType, in, null, offset, length, chunkSize, listener);
+        if (in == null) throw new NullPointerException("InputStream == null");
+    }
+
+    /**
+     * Like {@link #CountingInputStreamRequestBody(MediaType, InputStream, long, long, int,
+     * CountingInputStreamMultipartBody.ProgressListener)}, opening {@code file} when written.
+     */
+    public CountingInputStreamRequestBody(MediaType contentType, File file, long offset,
+                                          long length, int chunkSize,
+                                          CountingInputStreamMultipartBody.ProgressListener listener) {
+        this(contentType, null, file, offset, length, chunkSize, listener);
+        if (file == null) throw new NullPointerException("file == null");
+    }
+
+    private CountingInputStreamRequestBody(MediaType contentType, InputStream in, File file,
+                                           long offset, long length, int chunkSize,
+                                           CountingInputStreamMultipartBody.ProgressListener listener) {
+        if (length < 0 ? offset != 0 : offset < 0 || offset > length) {
+            throw new IllegalArgumentException("offset out of range");
+        }
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize <= 0");
+        this.contentType = contentType;
+        this.in = in;
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.listener = listener;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return length < 0 ? -1 : length - offset;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        Source source = null;
+        try {
+            source = openSource();
+            final Buffer chunk = new Buffer();
+            long current = offset;
+            while (length < 0 || current < length) {
+                final long nextChunkSize = length < 0 ? chunkSize : Math.min(chunkSize, length - current);
+                final long read = source.read(chunk, nextChunkSize);
+                if (read == -1) {
+                    if (length < 0) {
+                        break;
+                    }
+                    throw new EOFException("source ended at " + current + " of " + length);
+                }
+                // moves the segments, the bytes aren't copied again
+                sink.write(chunk, read);
+                current += read;
+                if (listener != null) {
+                    listener.transferred(current);
+                }
+            }
+        } finally {
+            Util.closeQuietly(source != null ? source : in);
+        }
+    }
+
+    private Source openSource() throws IOException {
+        if (file != null) {
+            final FileInputStream fileIn = new FileInputStream(file);
+            try {
+                fileIn.getChannel().position(offset);
+            } catch (IOException e) {
+                Util.closeQuietly(fileIn);
+                throw e;
+            }
+            return Okio.source(fileIn);
+        }
+        skipFully(offset);
+        return Okio.source(in);
+    }
+
+    private void skipFully(long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            long n = in.skip(count - skipped);
+            if (n <= 0) {
+                // skip() may return 0 before the end, only read() tells
+                if (in.read() == -1) {
+                    throw new EOFException("source ended at " + skipped + " of " + count);
+                }
+                n = 1;
+            }
+            skipped += n;
+        }
+    }
+}